@@ -3,18 +3,20 @@ package com.example.chaspy;
 import android.app.Application;
 import android.content.Context;
 import android.util.Log;
-import android.os.Handler;
-import android.os.Looper;
 
 import androidx.multidex.MultiDex;
 import androidx.work.Configuration;
 import java.util.concurrent.Executors;
 
+import com.example.chaspy.data.manager.DataMigrationManager;
+import com.example.chaspy.data.manager.SyncPolicyManager;
+import com.example.chaspy.service.FriendRequestCompactionWorker;
+import com.example.chaspy.service.OutboxWorker;
 import com.example.chaspy.service.ScheduledMessageManager;
+import com.example.chaspy.ui.format.TimestampFormatter;
 
 public class ChaspyApplication extends Application implements Configuration.Provider {
     private static final String TAG = "ChaspyApplication";
-    private Handler handler = new Handler(Looper.getMainLooper());
     
     @Override
     protected void attachBaseContext(Context base) {
@@ -30,34 +32,22 @@ public class ChaspyApplication extends Application implements Configuration.Prov
     @Override
     public void onCreate() {
         super.onCreate();
-        try {
-            // Initialize WorkManager with our custom configuration
-            // This does not block the UI thread
-            
-            // Start the scheduled message service with 3-second frequency
-            // This method is designed to not block the UI thread
-            ScheduledMessageManager.startScheduledMessageWorker(this);
-            Log.i(TAG, "Initialized scheduled message scheduler");
-            
-            // Schedule additional periodic checks for better reliability
-            // These use Handler.postDelayed which is non-blocking
-            scheduleAdditionalChecks();
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error starting ScheduledMessageManager: " + e.getMessage(), e);
-        }
-    }
-    
-    private void scheduleAdditionalChecks() {
-        // Schedule additional checks at specific intervals using non-blocking Handler.postDelayed
-        // These provide redundancy in case the second-level checker is killed
-        for (int seconds : new int[]{30, 60, 300}) {
-            final int delay = seconds;
-            handler.postDelayed(() -> {
-                ScheduledMessageManager.checkScheduledMessagesNow(this);
-                Log.d(TAG, "Running additional scheduled message check at " + delay + " seconds after startup");
-            }, seconds * 1000);
-        }
+        
+        // Has to configure the database before anything else uses it
+        SyncPolicyManager.initialize(this);
+        DataMigrationManager.initialize(this);
+        
+        // Arms an alarm for the next scheduled message and re-arms it as the schedule changes
+        ScheduledMessageManager.start(this);
+        
+        // Retry any messages that were still unsent when the app was last killed
+        OutboxWorker.enqueue(this);
+        
+        // Clean answered friend requests out of friend_requests
+        FriendRequestCompactionWorker.schedule(this);
+        
+        // Cached message times are only valid for the current time zone and locale
+        TimestampFormatter.watchSettingChanges(this);
     }
     
     @Override
@@ -0,0 +1,79 @@
+package com.example.chaspy.data.local;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * SQLite schema for the on-device chat cache and the outgoing message outbox.
+ * Cached messages can be re-downloaded, so upgrades simply rebuild those tables.
+ * The outbox holds messages that exist nowhere else and is never dropped.
+ */
+public class ChatDatabaseHelper extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "chaspy_chat.db";
+    private static final int DATABASE_VERSION = 5;
+
+    static final String TABLE_MESSAGES = "messages";
+    static final String TABLE_CONVERSATIONS = "cached_conversations";
+    static final String TABLE_OUTBOX = "outbox";
+
+    static final String COLUMN_CONVERSATION_ID = "conversation_id";
+    static final String COLUMN_MESSAGE_ID = "message_id";
+    static final String COLUMN_SENDER_ID = "sender_id";
+    static final String COLUMN_RECEIVER_ID = "receiver_id";
+    static final String COLUMN_DELIVERY_KEY = "delivery_key";
+    static final String COLUMN_MESSAGE_CONTENT = "message_content";
+    static final String COLUMN_MESSAGE_TYPE = "message_type";
+    static final String COLUMN_TIMESTAMP = "timestamp";
+    static final String COLUMN_LAST_ACCESSED = "last_accessed";
+
+    public ChatDatabaseHelper(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_MESSAGES + " ("
+                + COLUMN_CONVERSATION_ID + " TEXT NOT NULL, "
+                + COLUMN_MESSAGE_ID + " TEXT NOT NULL, "
+                + COLUMN_SENDER_ID + " TEXT NOT NULL, "
+                + COLUMN_MESSAGE_CONTENT + " TEXT NOT NULL, "
+                + COLUMN_MESSAGE_TYPE + " TEXT NOT NULL, "
+                + COLUMN_TIMESTAMP + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_CONVERSATION_ID + ", " + COLUMN_MESSAGE_ID + "))");
+
+        db.execSQL("CREATE TABLE " + TABLE_CONVERSATIONS + " ("
+                + COLUMN_CONVERSATION_ID + " TEXT PRIMARY KEY, "
+                + COLUMN_LAST_ACCESSED + " INTEGER NOT NULL)");
+
+        createOutbox(db);
+    }
+
+    private void createOutbox(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_OUTBOX + " ("
+                + COLUMN_MESSAGE_ID + " TEXT PRIMARY KEY, "
+                + COLUMN_CONVERSATION_ID + " TEXT NOT NULL, "
+                + COLUMN_SENDER_ID + " TEXT NOT NULL, "
+                + COLUMN_RECEIVER_ID + " TEXT, "
+                + COLUMN_MESSAGE_CONTENT + " TEXT NOT NULL, "
+                + COLUMN_MESSAGE_TYPE + " TEXT NOT NULL, "
+                + COLUMN_TIMESTAMP + " INTEGER NOT NULL, "
+                + COLUMN_DELIVERY_KEY + " TEXT)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion == 3) {
+            // Outbox rows written before version 4 have no receiver
+            db.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN " + COLUMN_RECEIVER_ID + " TEXT");
+        }
+        if (oldVersion == 3 || oldVersion == 4) {
+            // Outbox rows written before version 5 get their delivery key on the next send
+            db.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN " + COLUMN_DELIVERY_KEY + " TEXT");
+        }
+
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MESSAGES);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_CONVERSATIONS);
+        onCreate(db); // Keeps an existing outbox
+    }
+}
@@ -0,0 +1,363 @@
+package com.example.chaspy.data.local;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.chaspy.data.model.Message;
+import com.example.chaspy.data.model.MessageType;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Persistent per-conversation message cache.
+ *
+ * Each conversation keeps a contiguous run of its newest messages (ordered by push key),
+ * trimmed to MAX_MESSAGES_PER_CONVERSATION. When more than MAX_CONVERSATIONS are cached,
+ * the least recently opened conversations are evicted.
+ *
+ * It also holds the outbox: messages written locally that the server has not acknowledged yet.
+ * Outbox entries are merged into getMessages() as pending messages and are never evicted.
+ * An entry is known by the key it was written with until OutboxWorker gives it a delivery key,
+ * and by its delivery key from then on.
+ *
+ * All methods hit the disk, so call them off the main thread.
+ */
+public class LocalMessageStore {
+    private static final int MAX_MESSAGES_PER_CONVERSATION = 500;
+    private static final int MAX_CONVERSATIONS = 50;
+
+    private static volatile LocalMessageStore instance;
+
+    private final ChatDatabaseHelper dbHelper;
+
+    private LocalMessageStore(Context context) {
+        dbHelper = new ChatDatabaseHelper(context.getApplicationContext());
+    }
+
+    public static LocalMessageStore getInstance(Context context) {
+        if (instance == null) {
+            synchronized (LocalMessageStore.class) {
+                if (instance == null) {
+                    instance = new LocalMessageStore(context);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Get every cached message of a conversation, oldest first.
+     */
+    public List<Message> getMessages(String conversationId) {
+        List<Message> messages = new ArrayList<>();
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        try (Cursor cursor = db.query(ChatDatabaseHelper.TABLE_MESSAGES,
+                new String[]{
+                        ChatDatabaseHelper.COLUMN_MESSAGE_ID,
+                        ChatDatabaseHelper.COLUMN_SENDER_ID,
+                        ChatDatabaseHelper.COLUMN_MESSAGE_CONTENT,
+                        ChatDatabaseHelper.COLUMN_MESSAGE_TYPE,
+                        ChatDatabaseHelper.COLUMN_TIMESTAMP},
+                ChatDatabaseHelper.COLUMN_CONVERSATION_ID + " = ?",
+                new String[]{conversationId},
+                null, null,
+                ChatDatabaseHelper.COLUMN_MESSAGE_ID + " ASC")) {
+            while (cursor.moveToNext()) {
+                messages.add(new Message(
+                        cursor.getString(0),
+                        cursor.getString(1),
+                        cursor.getString(2),
+                        MessageType.fromValue(cursor.getString(3)),
+                        cursor.getLong(4)));
+            }
+        }
+
+        // Unsent messages go last and replace any cached copy of the same key
+        List<Message> outbox = getOutbox(db, conversationId);
+        if (!outbox.isEmpty()) {
+            Set<String> pendingIds = new HashSet<>();
+            for (Message pending : outbox) {
+                pendingIds.add(pending.getMessageId());
+            }
+            messages.removeIf(message -> pendingIds.contains(message.getMessageId()));
+            messages.addAll(outbox);
+        }
+
+        touchConversation(conversationId);
+        return messages;
+    }
+
+    /**
+     * Get the newest cached push key of a conversation, or null if nothing is cached.
+     * Outbox entries are not counted, since the server does not have them yet.
+     */
+    public String getHighWatermark(String conversationId) {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        try (Cursor cursor = db.rawQuery(
+                "SELECT MAX(" + ChatDatabaseHelper.COLUMN_MESSAGE_ID + ") FROM " + ChatDatabaseHelper.TABLE_MESSAGES
+                        + " WHERE " + ChatDatabaseHelper.COLUMN_CONVERSATION_ID + " = ?",
+                new String[]{conversationId})) {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getString(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Insert or replace messages, then apply the size limits.
+     */
+    public void saveMessages(String conversationId, List<Message> messages) {
+        if (messages == null || messages.isEmpty()) {
+            return;
+        }
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (Message message : messages) {
+                values.clear();
+                values.put(ChatDatabaseHelper.COLUMN_CONVERSATION_ID, conversationId);
+                values.put(ChatDatabaseHelper.COLUMN_MESSAGE_ID, message.getMessageId());
+                values.put(ChatDatabaseHelper.COLUMN_SENDER_ID, message.getSenderId());
+                values.put(ChatDatabaseHelper.COLUMN_MESSAGE_CONTENT, message.getMessageContent());
+                values.put(ChatDatabaseHelper.COLUMN_MESSAGE_TYPE, message.getMessageType().getValue());
+                values.put(ChatDatabaseHelper.COLUMN_TIMESTAMP, message.getTimestamp());
+                db.insertWithOnConflict(ChatDatabaseHelper.TABLE_MESSAGES, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+
+            trimConversation(db, conversationId);
+            markAccessed(db, conversationId);
+            evictLeastRecentlyUsed(db);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void saveMessage(String conversationId, Message message) {
+        List<Message> single = new ArrayList<>(1);
+        single.add(message);
+        saveMessages(conversationId, single);
+    }
+
+    /**
+     * Drop the cached messages of a conversation. Its outbox entries are kept.
+     */
+    public void clearConversation(String conversationId) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.delete(ChatDatabaseHelper.TABLE_MESSAGES,
+                ChatDatabaseHelper.COLUMN_CONVERSATION_ID + " = ?", new String[]{conversationId});
+        db.delete(ChatDatabaseHelper.TABLE_CONVERSATIONS,
+                ChatDatabaseHelper.COLUMN_CONVERSATION_ID + " = ?", new String[]{conversationId});
+    }
+
+    /**
+     * Persist an outgoing message until the server acknowledges it.
+     */
+    public void addToOutbox(String conversationId, String receiverId, Message message) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(ChatDatabaseHelper.COLUMN_MESSAGE_ID, message.getMessageId());
+        values.put(ChatDatabaseHelper.COLUMN_CONVERSATION_ID, conversationId);
+        values.put(ChatDatabaseHelper.COLUMN_SENDER_ID, message.getSenderId());
+        values.put(ChatDatabaseHelper.COLUMN_RECEIVER_ID, receiverId);
+        values.put(ChatDatabaseHelper.COLUMN_MESSAGE_CONTENT, message.getMessageContent());
+        values.put(ChatDatabaseHelper.COLUMN_MESSAGE_TYPE, message.getMessageType().getValue());
+        values.put(ChatDatabaseHelper.COLUMN_TIMESTAMP, message.getTimestamp());
+        db.insertWithOnConflict(ChatDatabaseHelper.TABLE_OUTBOX, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Get every unsent message the given user sent, in every conversation, oldest first.
+     * Other users who signed in on this device keep theirs until they sign in again.
+     */
+    public List<OutboxEntry> getOutbox(String senderId) {
+        List<OutboxEntry> entries = new ArrayList<>();
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        try (Cursor cursor = db.query(ChatDatabaseHelper.TABLE_OUTBOX,
+                new String[]{
+                        ChatDatabaseHelper.COLUMN_CONVERSATION_ID,
+                        ChatDatabaseHelper.COLUMN_RECEIVER_ID,
+                        ChatDatabaseHelper.COLUMN_DELIVERY_KEY,
+                        ChatDatabaseHelper.COLUMN_MESSAGE_ID,
+                        ChatDatabaseHelper.COLUMN_SENDER_ID,
+                        ChatDatabaseHelper.COLUMN_MESSAGE_CONTENT,
+                        ChatDatabaseHelper.COLUMN_MESSAGE_TYPE,
+                        ChatDatabaseHelper.COLUMN_TIMESTAMP},
+                ChatDatabaseHelper.COLUMN_SENDER_ID + " = ?",
+                new String[]{senderId},
+                null, null,
+                ChatDatabaseHelper.COLUMN_MESSAGE_ID + " ASC")) {
+            while (cursor.moveToNext()) {
+                entries.add(new OutboxEntry(cursor.getString(0), cursor.getString(1), cursor.getString(2),
+                        new Message(
+                                cursor.getString(3),
+                                cursor.getString(4),
+                                cursor.getString(5),
+                                MessageType.fromValue(cursor.getString(6)),
+                                cursor.getLong(7),
+                                true)));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Give an outbox entry the key and time it is delivered under. The pending copy is shown
+     * under them from then on.
+     *
+     * @param messageId The key the entry was written with
+     * @return false if the entry has left the outbox in the meantime
+     */
+    public boolean setDeliveryKey(String messageId, String deliveryKey, long timestamp) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(ChatDatabaseHelper.COLUMN_DELIVERY_KEY, deliveryKey);
+        values.put(ChatDatabaseHelper.COLUMN_TIMESTAMP, timestamp);
+        return db.update(ChatDatabaseHelper.TABLE_OUTBOX, values,
+                ChatDatabaseHelper.COLUMN_MESSAGE_ID + " = ? AND " + ChatDatabaseHelper.COLUMN_DELIVERY_KEY + " IS NULL",
+                new String[]{messageId}) > 0;
+    }
+
+    /**
+     * Drop a message from the outbox once the server has it, and cache the delivered copy.
+     * The message may carry either the key it was written with or its delivery key.
+     */
+    public void markDelivered(String conversationId, Message message) {
+        removeFromOutbox(message.getMessageId());
+        saveMessage(conversationId, message.asDelivered());
+    }
+
+    /**
+     * Drop a message from the outbox that the server will never accept.
+     */
+    public void removeFromOutbox(String messageId) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.delete(ChatDatabaseHelper.TABLE_OUTBOX,
+                ChatDatabaseHelper.COLUMN_MESSAGE_ID + " = ? OR " + ChatDatabaseHelper.COLUMN_DELIVERY_KEY + " = ?",
+                new String[]{messageId, messageId});
+    }
+
+    private List<Message> getOutbox(SQLiteDatabase db, String conversationId) {
+        List<Message> messages = new ArrayList<>();
+
+        try (Cursor cursor = db.query(ChatDatabaseHelper.TABLE_OUTBOX,
+                new String[]{
+                        "COALESCE(" + ChatDatabaseHelper.COLUMN_DELIVERY_KEY + ", " + ChatDatabaseHelper.COLUMN_MESSAGE_ID + ")",
+                        ChatDatabaseHelper.COLUMN_SENDER_ID,
+                        ChatDatabaseHelper.COLUMN_MESSAGE_CONTENT,
+                        ChatDatabaseHelper.COLUMN_MESSAGE_TYPE,
+                        ChatDatabaseHelper.COLUMN_TIMESTAMP},
+                ChatDatabaseHelper.COLUMN_CONVERSATION_ID + " = ?",
+                new String[]{conversationId},
+                null, null,
+                ChatDatabaseHelper.COLUMN_MESSAGE_ID + " ASC")) {
+            while (cursor.moveToNext()) {
+                messages.add(new Message(
+                        cursor.getString(0),
+                        cursor.getString(1),
+                        cursor.getString(2),
+                        MessageType.fromValue(cursor.getString(3)),
+                        cursor.getLong(4),
+                        true));
+            }
+        }
+        return messages;
+    }
+
+    private void touchConversation(String conversationId) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        markAccessed(db, conversationId);
+    }
+
+    private void markAccessed(SQLiteDatabase db, String conversationId) {
+        ContentValues values = new ContentValues();
+        values.put(ChatDatabaseHelper.COLUMN_CONVERSATION_ID, conversationId);
+        values.put(ChatDatabaseHelper.COLUMN_LAST_ACCESSED, System.currentTimeMillis());
+        db.insertWithOnConflict(ChatDatabaseHelper.TABLE_CONVERSATIONS, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    // Keep only the newest MAX_MESSAGES_PER_CONVERSATION keys so the cache stays a contiguous suffix
+    private void trimConversation(SQLiteDatabase db, String conversationId) {
+        db.execSQL("DELETE FROM " + ChatDatabaseHelper.TABLE_MESSAGES
+                        + " WHERE " + ChatDatabaseHelper.COLUMN_CONVERSATION_ID + " = ?"
+                        + " AND " + ChatDatabaseHelper.COLUMN_MESSAGE_ID + " NOT IN ("
+                        + "SELECT " + ChatDatabaseHelper.COLUMN_MESSAGE_ID + " FROM " + ChatDatabaseHelper.TABLE_MESSAGES
+                        + " WHERE " + ChatDatabaseHelper.COLUMN_CONVERSATION_ID + " = ?"
+                        + " ORDER BY " + ChatDatabaseHelper.COLUMN_MESSAGE_ID + " DESC"
+                        + " LIMIT " + MAX_MESSAGES_PER_CONVERSATION + ")",
+                new Object[]{conversationId, conversationId});
+    }
+
+    private void evictLeastRecentlyUsed(SQLiteDatabase db) {
+        List<String> evicted = new ArrayList<>();
+
+        try (Cursor cursor = db.query(ChatDatabaseHelper.TABLE_CONVERSATIONS,
+                new String[]{ChatDatabaseHelper.COLUMN_CONVERSATION_ID},
+                null, null, null, null,
+                ChatDatabaseHelper.COLUMN_LAST_ACCESSED + " DESC",
+                MAX_CONVERSATIONS + ", -1")) {
+            while (cursor.moveToNext()) {
+                evicted.add(cursor.getString(0));
+            }
+        }
+
+        for (String conversationId : evicted) {
+            String[] args = new String[]{conversationId};
+            db.delete(ChatDatabaseHelper.TABLE_MESSAGES, ChatDatabaseHelper.COLUMN_CONVERSATION_ID + " = ?", args);
+            db.delete(ChatDatabaseHelper.TABLE_CONVERSATIONS, ChatDatabaseHelper.COLUMN_CONVERSATION_ID + " = ?", args);
+        }
+    }
+
+    public static class OutboxEntry {
+        private final String conversationId;
+        private final String receiverId;
+        private final String deliveryKey;
+        private final Message message;
+
+        OutboxEntry(String conversationId, String receiverId, String deliveryKey, Message message) {
+            this.conversationId = conversationId;
+            this.receiverId = receiverId;
+            this.deliveryKey = deliveryKey;
+            this.message = message;
+        }
+
+        public String getConversationId() {
+            return conversationId;
+        }
+
+        /**
+         * May be null for entries queued by an older app version
+         */
+        public String getReceiverId() {
+            return receiverId;
+        }
+
+        /**
+         * Key the message is delivered under, or null if no delivery has started yet
+         */
+        public String getDeliveryKey() {
+            return deliveryKey;
+        }
+
+        /**
+         * The message under the key it was written with
+         */
+        public Message getMessage() {
+            return message;
+        }
+    }
+}
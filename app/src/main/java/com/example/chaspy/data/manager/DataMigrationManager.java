@@ -0,0 +1,238 @@
+package com.example.chaspy.data.manager;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.example.chaspy.data.mapper.SnapshotMapper;
+import com.example.chaspy.data.model.Conversation;
+import com.example.chaspy.data.model.FriendRequest;
+import com.example.chaspy.data.model.User;
+import com.example.chaspy.data.repository.FriendRequestRepository;
+import com.example.chaspy.data.service.ConversationFirebaseService;
+import com.example.chaspy.data.service.UserFirebaseService;
+import com.example.chaspy.data.service.UserSearchService;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Brings data written by older app versions up to date with the current layout.
+ *
+ * Each migration runs once per signed-in user, for that user's own data, the first time they
+ * sign in with a version that has it. A migration that fails is retried on the next sign-in.
+ */
+public class DataMigrationManager {
+    private static final String TAG = "DataMigrationManager";
+    private static final String PREF_NAME = "ChaspyMigrations";
+    public static final String CONVERSATION_ALIASES = "conversation_aliases";
+    public static final String BLOCKED_BY_REVERSE_INDEX = "blocked_by_reverse_index";
+
+    private static DataMigrationManager instance;
+
+    private final SharedPreferences preferences;
+    private final DatabaseReference rootRef;
+    private String migratedUserId;
+
+    private DataMigrationManager(Context context) {
+        preferences = context.getApplicationContext().getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        rootRef = FirebaseDatabase.getInstance().getReference();
+    }
+
+    /**
+     * Run pending migrations whenever a user signs in.
+     */
+    public static synchronized void initialize(Context context) {
+        if (instance != null) {
+            return;
+        }
+        instance = new DataMigrationManager(context);
+        FirebaseAuth.getInstance().addAuthStateListener(auth -> {
+            FirebaseUser user = auth.getCurrentUser();
+            instance.onUserChanged(user != null ? user.getUid() : null);
+        });
+    }
+
+    private void onUserChanged(String userId) {
+        if (userId == null || userId.equals(migratedUserId)) {
+            migratedUserId = userId;
+            return;
+        }
+        migratedUserId = userId;
+
+        runOnce(userId, "user_search_flat_index", () -> indexSelfForSearch(userId));
+        runOnce(userId, "public_profiles", () -> publishOwnProfile(userId));
+        runOnce(userId, BLOCKED_BY_REVERSE_INDEX, () -> indexOwnBlocks(userId));
+        runOnce(userId, CONVERSATION_ALIASES, () -> aliasOwnConversations(userId));
+        runOnce(userId, "friend_request_pair_keys", () -> rekeySentRequests(userId));
+        // Answered requests used to be kept with their status
+        runOnce(userId, "friend_request_compaction", () -> FriendRequestRepository.compactResolvedRequests(userId));
+    }
+
+    /**
+     * Whether a migration has already run for the user on this device.
+     */
+    public static synchronized boolean hasRun(String userId, String migrationId) {
+        return instance != null && instance.preferences.getBoolean(userId + ":" + migrationId, false);
+    }
+
+    private void runOnce(String userId, String migrationId, Migration migration) {
+        String key = userId + ":" + migrationId;
+        if (preferences.getBoolean(key, false)) {
+            return;
+        }
+
+        migration.run().addOnCompleteListener(task -> {
+            if (task.isSuccessful()) {
+                preferences.edit().putBoolean(key, true).apply();
+                Log.i(TAG, "Migration " + migrationId + " done");
+            } else {
+                Log.e(TAG, "Migration " + migrationId + " failed, will retry on next sign-in",
+                        task.getException());
+            }
+        });
+    }
+
+    // Accounts created before user_search existed aren't in it, and entries written before it had
+    // one flat child per user are under user_search/{name}/{uid}; each user re-indexes themself
+    private Task<Void> indexSelfForSearch(String userId) {
+        return rootRef.child("users").child(userId).get().continueWithTask(readTask -> {
+            if (!readTask.isSuccessful()) {
+                throw readTask.getException();
+            }
+            User user = SnapshotMapper.toUser(readTask.getResult());
+            if (user == null) {
+                return Tasks.<Void>forResult(null);
+            }
+
+            Map<String, Object> updates = new HashMap<>();
+            UserSearchService.putNestedIndexRemovals(updates, userId, user.getFirstName(), user.getLastName());
+            UserSearchService.putIndexEntries(updates, userId, user.getFirstName(), user.getLastName(),
+                    user.getProfilePicUrl());
+            return rootRef.updateChildren(updates);
+        });
+    }
+
+    // Accounts created before public_profiles existed have no public profile; each user copies
+    // theirs from users/{uid}
+    private Task<Void> publishOwnProfile(String userId) {
+        return rootRef.child("users").child(userId).get().continueWithTask(readTask -> {
+            if (!readTask.isSuccessful()) {
+                throw readTask.getException();
+            }
+            User user = SnapshotMapper.toUser(readTask.getResult());
+            if (user == null) {
+                return Tasks.<Void>forResult(null);
+            }
+
+            Map<String, Object> updates = new HashMap<>();
+            UserFirebaseService.putPublicProfile(updates, userId, user.getFirstName(), user.getLastName(),
+                    user.getEmail(), user.getProfilePicUrl(), user.isisActive());
+            return rootRef.updateChildren(updates);
+        });
+    }
+
+    // Block lists written before blocked_by existed have no reverse entries; each user adds
+    // the entries for their own block list
+    private Task<Void> indexOwnBlocks(String userId) {
+        return rootRef.child("users").child(userId).child("block_list").get().continueWithTask(readTask -> {
+            if (!readTask.isSuccessful()) {
+                throw readTask.getException();
+            }
+
+            Map<String, Object> updates = new HashMap<>();
+            for (DataSnapshot blockSnapshot : readTask.getResult().getChildren()) {
+                if (Boolean.TRUE.equals(blockSnapshot.getValue(Boolean.class))) {
+                    updates.put("blocked_by/" + blockSnapshot.getKey() + "/" + userId, true);
+                }
+            }
+            if (updates.isEmpty()) {
+                return Tasks.<Void>forResult(null);
+            }
+            return rootRef.updateChildren(updates);
+        });
+    }
+
+    // Conversations created before pair IDs existed keep their push IDs; each user points the
+    // pair IDs of their own conversations at them, choosing the most recent one if there are several.
+    // Read from the conversations themselves, since the user's index may be missing entries
+    private Task<Void> aliasOwnConversations(String userId) {
+        DatabaseReference conversationsRef = rootRef.child("conversations");
+        Task<DataSnapshot> asUser1 = conversationsRef.orderByChild("user1_id").equalTo(userId).get();
+        Task<DataSnapshot> asUser2 = conversationsRef.orderByChild("user2_id").equalTo(userId).get();
+
+        return Tasks.whenAllSuccess(asUser1, asUser2).continueWithTask(readTask -> {
+            if (!readTask.isSuccessful()) {
+                throw readTask.getException();
+            }
+
+            Map<String, Conversation> newestByPair = new HashMap<>();
+            for (Object result : readTask.getResult()) {
+                for (DataSnapshot conversationSnapshot : ((DataSnapshot) result).getChildren()) {
+                    Conversation conversation = SnapshotMapper.toConversation(conversationSnapshot, userId);
+                    if (conversation == null || conversation.getFriendId() == null) {
+                        continue;
+                    }
+                    String pairId = ConversationFirebaseService.pairConversationId(userId, conversation.getFriendId());
+                    Conversation newest = newestByPair.get(pairId);
+                    if (newest == null || conversation.getLastMessageTimeMillis() > newest.getLastMessageTimeMillis()) {
+                        newestByPair.put(pairId, conversation);
+                    }
+                }
+            }
+
+            Map<String, Object> updates = new HashMap<>();
+            for (Map.Entry<String, Conversation> alias : newestByPair.entrySet()) {
+                updates.put("conversation_aliases/" + alias.getKey(), alias.getValue().getConversationId());
+            }
+            if (updates.isEmpty()) {
+                return Tasks.<Void>forResult(null);
+            }
+            return rootRef.updateChildren(updates);
+        });
+    }
+
+    // Requests sent before they were keyed by sender and receiver have push keys; each user
+    // moves the requests they sent to their pair keys so they can be found and cancelled
+    private Task<Void> rekeySentRequests(String userId) {
+        return rootRef.child("friend_requests").orderByChild("sender_id").equalTo(userId).get()
+                .continueWithTask(readTask -> {
+                    if (!readTask.isSuccessful()) {
+                        throw readTask.getException();
+                    }
+
+                    // Requests already under their pair key are kept as they are
+                    Map<String, Object> updates = new HashMap<>();
+                    for (DataSnapshot requestSnapshot : readTask.getResult().getChildren()) {
+                        FriendRequest request = SnapshotMapper.toFriendRequest(requestSnapshot);
+                        if (request == null) {
+                            continue;
+                        }
+                        String requestId = FriendRequestRepository.requestId(userId, request.getReceiverId());
+                        if (requestId.equals(request.getRequestId())) {
+                            continue;
+                        }
+                        // Only pending requests are moved, answered ones are just deleted
+                        if ("pending".equals(request.getStatus()) && !readTask.getResult().hasChild(requestId)) {
+                            updates.put("friend_requests/" + requestId, requestSnapshot.getValue());
+                        }
+                        updates.put("friend_requests/" + requestSnapshot.getKey(), null);
+                    }
+                    if (updates.isEmpty()) {
+                        return Tasks.<Void>forResult(null);
+                    }
+                    return rootRef.updateChildren(updates);
+                });
+    }
+
+    private interface Migration {
+        Task<Void> run();
+    }
+}
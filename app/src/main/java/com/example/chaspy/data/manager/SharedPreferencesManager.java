@@ -18,6 +18,7 @@ public class SharedPreferencesManager {
     private static final String KEY_REMEMBER_ACCOUNT = "rememberAccount";
     private static final String KEY_SAVED_ACCOUNTS = "savedAccounts";
     private static final String KEY_LAST_USED_ACCOUNT = "lastUsedAccount";
+    private static final String KEY_SYNC_CACHE_SIZE = "syncCacheSizeBytes";
 
     private final SharedPreferences sharedPreferences;
     private final Gson gson;
@@ -157,6 +158,18 @@ public class SharedPreferencesManager {
         editor.apply();
     }
     
+    /**
+     * Size of the Firebase disk cache. SyncPolicyManager reads it at app start,
+     * so a new value takes effect on the next start.
+     */
+    public long getSyncCacheSizeBytes() {
+        return sharedPreferences.getLong(KEY_SYNC_CACHE_SIZE, SyncPolicyManager.DEFAULT_CACHE_SIZE_BYTES);
+    }
+
+    public void setSyncCacheSizeBytes(long bytes) {
+        sharedPreferences.edit().putLong(KEY_SYNC_CACHE_SIZE, bytes).apply();
+    }
+
     // Account item class to store username and password pairs
     public static class AccountItem {
         private String username;
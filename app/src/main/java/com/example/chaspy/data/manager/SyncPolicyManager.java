@@ -0,0 +1,322 @@
+package com.example.chaspy.data.manager;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.example.chaspy.data.model.Message;
+import com.example.chaspy.data.repository.ChatRepository;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseException;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides what the Realtime Database keeps on disk and in sync.
+ *
+ * Disk persistence is enabled with a configurable cache size, so screens open from the local
+ * cache instead of waiting on the network. One-shot reads that must be current use get(), which
+ * asks the server first; listeners and the synced set below are what screens read from disk.
+ * While a user is signed in, their inbox index, their own profile and the newest page of their
+ * most recent conversations are kept synced. The conversations are chosen newest first within
+ * a byte budget. A conversation that falls out of that set is released and becomes an ordinary
+ * cache entry that Firebase may evict.
+ *
+ * First page reads of a conversation are counted as hits (the conversation was being kept synced)
+ * or misses, with their latency, so the budget can be tuned against cold-start time. The totals
+ * are logged when the user signs out and can be read with getStats().
+ */
+public class SyncPolicyManager {
+    private static final String TAG = "SyncPolicyManager";
+
+    public static final long DEFAULT_CACHE_SIZE_BYTES = 20L * 1024 * 1024;
+    // Limits Firebase accepts for the persistence cache
+    private static final long MIN_CACHE_SIZE_BYTES = 1024 * 1024;
+    private static final long MAX_CACHE_SIZE_BYTES = 100L * 1024 * 1024;
+
+    private static final int TOP_CONVERSATIONS = 10;
+    private static final long SYNC_BUDGET_BYTES = 2L * 1024 * 1024;
+    // Used for a conversation until one of its pages has been loaded
+    private static final long DEFAULT_CONVERSATION_BYTES = ChatRepository.PAGE_SIZE * 256L;
+    private static final long MESSAGE_OVERHEAD_BYTES = 160;
+
+    private static SyncPolicyManager instance;
+
+    private final DatabaseReference rootRef;
+    private String userId;
+    private Query recentConversationsQuery;
+    private ValueEventListener recentConversationsListener;
+    // Conversations currently kept synced, newest first
+    private final LinkedHashSet<String> syncedConversations = new LinkedHashSet<>();
+    private final Map<String, Long> conversationBytes = new HashMap<>();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long hitLatencyTotalMs = 0;
+    private long missLatencyTotalMs = 0;
+    private long inboxLoads = 0;
+    private long inboxLatencyTotalMs = 0;
+
+    private SyncPolicyManager(FirebaseDatabase database) {
+        rootRef = database.getReference();
+    }
+
+    /**
+     * Enable disk persistence and start following the signed-in user.
+     * Must run before anything else uses FirebaseDatabase, i.e. first thing in Application.onCreate.
+     */
+    public static synchronized void initialize(Context context) {
+        if (instance != null) {
+            return;
+        }
+
+        long cacheSizeBytes = new SharedPreferencesManager(context).getSyncCacheSizeBytes();
+        cacheSizeBytes = Math.max(MIN_CACHE_SIZE_BYTES, Math.min(MAX_CACHE_SIZE_BYTES, cacheSizeBytes));
+
+        FirebaseDatabase database = FirebaseDatabase.getInstance();
+        try {
+            database.setPersistenceEnabled(true);
+            database.setPersistenceCacheSizeBytes(cacheSizeBytes);
+        } catch (DatabaseException e) {
+            // The database was already used, it keeps running without a disk cache
+            Log.e(TAG, "Could not enable persistence: " + e.getMessage());
+        }
+
+        instance = new SyncPolicyManager(database);
+        FirebaseAuth.getInstance().addAuthStateListener(auth -> {
+            FirebaseUser user = auth.getCurrentUser();
+            instance.onUserChanged(user != null ? user.getUid() : null);
+        });
+    }
+
+    public static synchronized SyncPolicyManager getInstance() {
+        return instance;
+    }
+
+    /**
+     * Record how long the first page of a conversation took to load.
+     */
+    public synchronized void recordMessageRead(String conversationId, long latencyMs) {
+        if (syncedConversations.contains(conversationId)) {
+            hits++;
+            hitLatencyTotalMs += latencyMs;
+        } else {
+            misses++;
+            missLatencyTotalMs += latencyMs;
+        }
+    }
+
+    /**
+     * Record how long the inbox took to load.
+     */
+    public synchronized void recordInboxRead(long latencyMs) {
+        inboxLoads++;
+        inboxLatencyTotalMs += latencyMs;
+    }
+
+    /**
+     * Update a conversation's size estimate from a page that was just loaded.
+     */
+    public synchronized void recordMessagesLoaded(String conversationId, List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        long bytes = 0;
+        for (Message message : messages) {
+            String content = message.getMessageContent();
+            bytes += MESSAGE_OVERHEAD_BYTES + (content != null ? content.length() * 2L : 0);
+        }
+        // Scale to a full page, which is what keepSynced holds
+        conversationBytes.put(conversationId, bytes * ChatRepository.PAGE_SIZE / messages.size());
+    }
+
+    public synchronized SyncStats getStats() {
+        long syncedBytes = 0;
+        for (String conversationId : syncedConversations) {
+            syncedBytes += estimatedBytes(conversationId);
+        }
+        return new SyncStats(hits, misses,
+                hits > 0 ? hitLatencyTotalMs / hits : 0,
+                misses > 0 ? missLatencyTotalMs / misses : 0,
+                inboxLoads > 0 ? inboxLatencyTotalMs / inboxLoads : 0,
+                syncedConversations.size(), syncedBytes);
+    }
+
+    private synchronized void onUserChanged(String newUserId) {
+        if (newUserId == null ? userId == null : newUserId.equals(userId)) {
+            return;
+        }
+
+        if (userId != null) {
+            Log.d(TAG, "Sync stats: " + getStats());
+        }
+        releaseAll();
+        userId = newUserId;
+        if (userId == null) {
+            return;
+        }
+
+        rootRef.child("user_conversations").child(userId).keepSynced(true);
+        rootRef.child("users").child(userId).keepSynced(true);
+
+        recentConversationsQuery = rootRef.child("user_conversations").child(userId)
+                .orderByChild("last_message_time")
+                .limitToLast(TOP_CONVERSATIONS);
+        recentConversationsListener = new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot snapshot) {
+                List<String> newestFirst = new ArrayList<>();
+                for (DataSnapshot entry : snapshot.getChildren()) {
+                    newestFirst.add(entry.getKey());
+                }
+                Collections.reverse(newestFirst);
+                applyBudget(newestFirst);
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                Log.e(TAG, "Recent conversations listener cancelled: " + error.getMessage());
+            }
+        };
+        recentConversationsQuery.addValueEventListener(recentConversationsListener);
+    }
+
+    // Keep the newest conversations that fit in the byte budget, release the rest
+    private synchronized void applyBudget(List<String> newestFirst) {
+        Set<String> keep = new LinkedHashSet<>();
+        long total = 0;
+        for (String conversationId : newestFirst) {
+            long bytes = estimatedBytes(conversationId);
+            if (!keep.isEmpty() && total + bytes > SYNC_BUDGET_BYTES) {
+                break;
+            }
+            keep.add(conversationId);
+            total += bytes;
+        }
+
+        for (String conversationId : new ArrayList<>(syncedConversations)) {
+            if (!keep.contains(conversationId)) {
+                setConversationSynced(conversationId, false);
+            }
+        }
+        for (String conversationId : keep) {
+            if (!syncedConversations.contains(conversationId)) {
+                setConversationSynced(conversationId, true);
+            }
+        }
+
+        syncedConversations.clear();
+        syncedConversations.addAll(keep);
+        Log.d(TAG, "Keeping " + keep.size() + " conversations synced (~" + total + " bytes)");
+    }
+
+    private void setConversationSynced(String conversationId, boolean synced) {
+        rootRef.child("conversations").child(conversationId).keepSynced(synced);
+        // Same query ChatFirebaseService uses for the newest page, so opening the chat reads it from disk
+        rootRef.child("messages").child(conversationId)
+                .orderByKey()
+                .limitToLast(ChatRepository.PAGE_SIZE)
+                .keepSynced(synced);
+    }
+
+    private void releaseAll() {
+        if (recentConversationsQuery != null) {
+            recentConversationsQuery.removeEventListener(recentConversationsListener);
+            recentConversationsQuery = null;
+            recentConversationsListener = null;
+        }
+        for (String conversationId : syncedConversations) {
+            setConversationSynced(conversationId, false);
+        }
+        syncedConversations.clear();
+        conversationBytes.clear();
+        if (userId != null) {
+            rootRef.child("user_conversations").child(userId).keepSynced(false);
+            rootRef.child("users").child(userId).keepSynced(false);
+        }
+    }
+
+    private long estimatedBytes(String conversationId) {
+        Long bytes = conversationBytes.get(conversationId);
+        return bytes != null ? bytes : DEFAULT_CONVERSATION_BYTES;
+    }
+
+    /**
+     * A snapshot of the sync statistics.
+     */
+    public static class SyncStats {
+        private final long hits;
+        private final long misses;
+        private final long averageHitLatencyMs;
+        private final long averageMissLatencyMs;
+        private final long averageInboxLatencyMs;
+        private final int syncedConversationCount;
+        private final long estimatedSyncedBytes;
+
+        SyncStats(long hits, long misses, long averageHitLatencyMs, long averageMissLatencyMs,
+                  long averageInboxLatencyMs, int syncedConversationCount, long estimatedSyncedBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.averageHitLatencyMs = averageHitLatencyMs;
+            this.averageMissLatencyMs = averageMissLatencyMs;
+            this.averageInboxLatencyMs = averageInboxLatencyMs;
+            this.syncedConversationCount = syncedConversationCount;
+            this.estimatedSyncedBytes = estimatedSyncedBytes;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public double getHitRate() {
+            long total = hits + misses;
+            return total > 0 ? (double) hits / total : 0;
+        }
+
+        public long getAverageHitLatencyMs() {
+            return averageHitLatencyMs;
+        }
+
+        public long getAverageMissLatencyMs() {
+            return averageMissLatencyMs;
+        }
+
+        public long getAverageInboxLatencyMs() {
+            return averageInboxLatencyMs;
+        }
+
+        public int getSyncedConversationCount() {
+            return syncedConversationCount;
+        }
+
+        public long getEstimatedSyncedBytes() {
+            return estimatedSyncedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + " (" + averageHitLatencyMs + "ms avg), misses=" + misses
+                    + " (" + averageMissLatencyMs + "ms avg), inbox=" + averageInboxLatencyMs
+                    + "ms avg, synced=" + syncedConversationCount + " conversations (~"
+                    + estimatedSyncedBytes + " bytes)";
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.example.chaspy.data.manager;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.example.chaspy.data.mapper.SnapshotMapper;
+import com.example.chaspy.data.model.UserProfile;
+import com.example.chaspy.data.service.UserFirebaseService;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * App-wide cache of other users' profiles (name, avatar, status).
+ *
+ * Each cached UID keeps one ValueEventListener on public_profiles/{uid}, which holds only what
+ * other users see, so an entry is refreshed by Firebase whenever the profile changes without
+ * downloading friend or block lists. Concurrent lookups of the same UID share that listener's
+ * first result, and watchers also get every later change. A user who has not signed in since
+ * public profiles were added has none yet; their public fields of users/{uid} are read once
+ * instead. Entries that nobody watches or has asked for in IDLE_TTL_MS are released, and at
+ * most MAX_ENTRIES are kept (least recently used go first).
+ *
+ * Must be used from the main thread, where Firebase delivers its callbacks.
+ */
+public class UserProfileCache {
+    private static final long IDLE_TTL_MS = 10 * 60 * 1000;
+    private static final int MAX_ENTRIES = 300;
+    // Read from users/{uid} for users without a public profile
+    private static final String[] PROFILE_FIELDS = {"firstName", "lastName", "email", "profilePicUrl", "isActive"};
+
+    private static UserProfileCache instance;
+
+    private final DatabaseReference profilesRef;
+    private final DatabaseReference usersRef;
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private UserProfileCache() {
+        FirebaseDatabase database = FirebaseDatabase.getInstance();
+        profilesRef = database.getReference(UserFirebaseService.PUBLIC_PROFILES_NODE);
+        usersRef = database.getReference("users");
+    }
+
+    public static synchronized UserProfileCache getInstance() {
+        if (instance == null) {
+            instance = new UserProfileCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Get a user's profile, from memory if it is cached.
+     * Lookups made while the first read is in flight wait for it instead of reading again.
+     */
+    public void getProfile(String uid, ProfileCallback callback) {
+        releaseIdleEntries();
+
+        Entry entry = entries.get(uid);
+        if (entry == null) {
+            entry = new Entry(uid);
+            entries.put(uid, entry);
+            trimToSize();
+            entry.listen();
+        }
+        entry.lastAccess = SystemClock.elapsedRealtime();
+
+        if (entry.loaded) {
+            entry.deliver(callback);
+        } else {
+            entry.waiting.add(callback);
+        }
+    }
+
+    /**
+     * Get a user's profile like getProfile, then again every time it changes, until
+     * unwatchProfile is called with the same callback.
+     */
+    public void watchProfile(String uid, ProfileCallback callback) {
+        getProfile(uid, callback);
+        Entry entry = entries.get(uid);
+        if (entry != null) {
+            entry.watchers.add(callback);
+        }
+    }
+
+    /**
+     * Stop sending changes to a watcher. A first result that is still loading is delivered anyway.
+     */
+    public void unwatchProfile(String uid, ProfileCallback callback) {
+        Entry entry = entries.get(uid);
+        if (entry != null) {
+            entry.watchers.remove(callback);
+            entry.lastAccess = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Drop a cached profile so the next lookup reads it again.
+     */
+    public void invalidate(String uid) {
+        Entry entry = entries.remove(uid);
+        if (entry != null) {
+            entry.release();
+        }
+    }
+
+    /**
+     * Drop everything, e.g. when the user signs out.
+     */
+    public void clear() {
+        for (Entry entry : entries.values()) {
+            entry.release();
+        }
+        entries.clear();
+    }
+
+    private void releaseIdleEntries() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.loaded && entry.watchers.isEmpty() && now - entry.lastAccess > IDLE_TTL_MS) {
+                entry.release();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > MAX_ENTRIES && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.waiting.isEmpty() && entry.watchers.isEmpty()) {
+                entry.release();
+                iterator.remove();
+            }
+        }
+    }
+
+    private class Entry implements ValueEventListener {
+        private final String uid;
+        private final List<ProfileCallback> waiting = new ArrayList<>();
+        private final List<ProfileCallback> watchers = new ArrayList<>();
+        private UserProfile profile;
+        private String error;
+        private boolean loaded = false;
+        // Set once public_profiles/{uid} exists, so a slower read of users/{uid} is ignored
+        private boolean hasPublicProfile = false;
+        private boolean readingUserFields = false;
+        private long lastAccess;
+
+        Entry(String uid) {
+            this.uid = uid;
+        }
+
+        void listen() {
+            profilesRef.child(uid).addValueEventListener(this);
+        }
+
+        @Override
+        public void onDataChange(@NonNull DataSnapshot snapshot) {
+            if (!snapshot.exists()) {
+                readUserFields();
+                return;
+            }
+            hasPublicProfile = true;
+            onProfileChanged(SnapshotMapper.toUserProfile(snapshot));
+        }
+
+        @Override
+        public void onCancelled(@NonNull DatabaseError databaseError) {
+            onFailed(databaseError.getMessage());
+        }
+
+        // The user has no public profile yet, read the same fields of users/{uid} once
+        private void readUserFields() {
+            if (readingUserFields || hasPublicProfile) {
+                return;
+            }
+            readingUserFields = true;
+
+            List<Task<DataSnapshot>> reads = new ArrayList<>();
+            for (String field : PROFILE_FIELDS) {
+                reads.add(usersRef.child(uid).child(field).get());
+            }
+            Tasks.whenAllSuccess(reads).addOnCompleteListener(task -> {
+                readingUserFields = false;
+                if (entries.get(uid) != this || hasPublicProfile) {
+                    return;
+                }
+                if (!task.isSuccessful()) {
+                    onFailed(task.getException() != null ? task.getException().getMessage() : "Failed to load profile");
+                    return;
+                }
+
+                Map<String, Object> fields = new HashMap<>();
+                for (Object result : task.getResult()) {
+                    DataSnapshot field = (DataSnapshot) result;
+                    if (field.getValue() != null) {
+                        fields.put(field.getKey(), field.getValue());
+                    }
+                }
+                onProfileChanged(SnapshotMapper.toUserProfile(uid, fields));
+            });
+        }
+
+        private void onProfileChanged(UserProfile changed) {
+            boolean firstLoad = !loaded;
+            profile = changed;
+            error = profile == null ? "User not found" : null;
+            loaded = true;
+            notifyWaiting();
+            if (!firstLoad) {
+                for (ProfileCallback watcher : new ArrayList<>(watchers)) {
+                    deliver(watcher);
+                }
+            }
+        }
+
+        private void onFailed(String message) {
+            if (entries.get(uid) != this) {
+                return;
+            }
+            // Don't keep a failed entry around, the next lookup tries again
+            error = message;
+            profile = null;
+            loaded = true;
+            notifyWaiting();
+            entries.remove(uid);
+            release();
+        }
+
+        private void notifyWaiting() {
+            List<ProfileCallback> callbacks = new ArrayList<>(waiting);
+            waiting.clear();
+            for (ProfileCallback callback : callbacks) {
+                deliver(callback);
+            }
+        }
+
+        void deliver(ProfileCallback callback) {
+            if (profile != null) {
+                callback.onSuccess(profile);
+            } else {
+                callback.onError(error);
+            }
+        }
+
+        void release() {
+            profilesRef.child(uid).removeEventListener(this);
+            watchers.clear();
+        }
+    }
+
+    public interface ProfileCallback {
+        void onSuccess(UserProfile profile);
+        void onError(String error);
+    }
+}
@@ -0,0 +1,265 @@
+package com.example.chaspy.data.mapper;
+
+import com.example.chaspy.data.model.Conversation;
+import com.example.chaspy.data.model.FriendRequest;
+import com.example.chaspy.data.model.Message;
+import com.example.chaspy.data.model.ScheduleMessage;
+import com.example.chaspy.data.model.User;
+import com.example.chaspy.data.model.UserProfile;
+import com.google.firebase.database.DataSnapshot;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps Firebase snapshots to the app's models.
+ *
+ * Each mapper calls getValue() once and reads the fields from the resulting map,
+ * instead of creating a child snapshot and going through the SDK's reflective
+ * conversion for every field. Mappers return null when a required field is missing.
+ *
+ * The mappers are written by hand rather than generated: there are only a few models,
+ * each needs its own handling of legacy values (numbers stored as strings, ISO times),
+ * and an annotation processor would need its own module next to the Glide one.
+ * SnapshotMapperTest checks the message mapper against the values the old parsing produced.
+ */
+public final class SnapshotMapper {
+
+    private SnapshotMapper() {
+    }
+
+    /**
+     * messages/{cid}/{messageId}
+     */
+    public static Message toMessage(DataSnapshot snapshot) {
+        return toMessage(snapshot.getKey(), asMap(snapshot));
+    }
+
+    /**
+     * A message from its key and the value map of its snapshot
+     */
+    public static Message toMessage(String messageId, Map<String, Object> fields) {
+        if (fields == null) {
+            return null;
+        }
+
+        String senderId = getString(fields, "sender_id");
+        String messageContent = getString(fields, "message_content");
+        String messageType = getString(fields, "message_type");
+        String timestamp = getString(fields, "timestamp");
+
+        if (messageId == null || senderId == null || messageContent == null
+                || messageType == null || timestamp == null) {
+            return null;
+        }
+        return new Message(messageId, senderId, messageContent, messageType, timestamp);
+    }
+
+    /**
+     * conversations/{cid}, as seen by the given user. The friend's name and picture are
+     * left empty for the caller to fill in. Returns null if the user is not a participant.
+     */
+    public static Conversation toConversation(DataSnapshot snapshot, String currentUserId) {
+        Map<String, Object> fields = asMap(snapshot);
+        if (fields == null) {
+            return null;
+        }
+
+        String user1Id = getString(fields, "user1_id");
+        String user2Id = getString(fields, "user2_id");
+        if (!currentUserId.equals(user1Id) && !currentUserId.equals(user2Id)) {
+            return null;
+        }
+
+        String friendId = currentUserId.equals(user1Id) ? user2Id : user1Id;
+        return new Conversation(
+                snapshot.getKey(),
+                getString(fields, "last_message"),
+                getString(fields, "last_message_time"),
+                friendId,
+                "",
+                "",
+                getString(fields, "theme_color"));
+    }
+
+    /**
+     * user_conversations/{uid}/{cid}, as a Conversation with only the friend ID and the
+     * last message time set
+     */
+    public static Conversation toConversationIndexEntry(DataSnapshot snapshot) {
+        Map<String, Object> fields = asMap(snapshot);
+        if (fields == null) {
+            return null;
+        }
+
+        String friendId = getString(fields, "friend_id");
+        if (friendId == null) {
+            return null;
+        }
+
+        return new Conversation(
+                snapshot.getKey(),
+                null,
+                getString(fields, "last_message_time"),
+                friendId,
+                "",
+                "",
+                null);
+    }
+
+    /**
+     * schedule_messages/{id}
+     */
+    public static ScheduleMessage toScheduleMessage(DataSnapshot snapshot) {
+        Map<String, Object> fields = asMap(snapshot);
+        if (fields == null) {
+            return null;
+        }
+
+        String senderId = getString(fields, "sender_id");
+        String receiverId = getString(fields, "receiver_id");
+        String content = getString(fields, "message_content");
+        String timeStr = getString(fields, "sending_time");
+
+        if (snapshot.getKey() == null || senderId == null || receiverId == null
+                || content == null || timeStr == null) {
+            return null;
+        }
+
+        long sendingTime;
+        try {
+            sendingTime = Long.parseLong(timeStr);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        ScheduleMessage message = new ScheduleMessage(snapshot.getKey(), senderId, receiverId, content,
+                sendingTime, getString(fields, "conversation_id"));
+
+        // Set once delivery has started
+        String messageKey = getString(fields, "message_key");
+        String deliveredAt = getString(fields, "delivered_at");
+        if (messageKey != null && deliveredAt != null) {
+            try {
+                message.setDelivery(messageKey, Long.parseLong(deliveredAt));
+            } catch (NumberFormatException ignored) {
+                // Claimed again by the next delivery
+            }
+        }
+        return message;
+    }
+
+    /**
+     * user_search/{name}|{uid}. Only the fields a search result shows are set.
+     */
+    public static User toSearchResult(DataSnapshot snapshot) {
+        Map<String, Object> fields = asMap(snapshot);
+        String key = snapshot.getKey();
+        int separator = key != null ? key.lastIndexOf('|') : -1;
+        if (fields == null || separator < 0 || separator == key.length() - 1) {
+            return null;
+        }
+
+        User user = new User(
+                null,
+                getString(fields, "firstName"),
+                getString(fields, "lastName"),
+                getString(fields, "profilePicUrl"),
+                false);
+        user.setUid(key.substring(separator + 1));
+        return user;
+    }
+
+    /**
+     * users/{uid}
+     */
+    public static User toUser(DataSnapshot snapshot) {
+        Map<String, Object> fields = asMap(snapshot);
+        if (fields == null) {
+            return null;
+        }
+
+        User user = new User(
+                getString(fields, "email"),
+                getString(fields, "firstName"),
+                getString(fields, "lastName"),
+                getString(fields, "profilePicUrl"),
+                getBoolean(fields, "isActive"));
+        user.setUid(snapshot.getKey());
+        user.setFriends(getBooleanMap(fields, "friends"));
+        user.setConversations(getBooleanMap(fields, "conversations"));
+        user.setBlock_list(getBooleanMap(fields, "block_list"));
+        return user;
+    }
+
+    /**
+     * public_profiles/{uid}
+     */
+    public static UserProfile toUserProfile(DataSnapshot snapshot) {
+        return toUserProfile(snapshot.getKey(), asMap(snapshot));
+    }
+
+    /**
+     * The fields of users/{uid} that other users see, keyed by field name
+     */
+    public static UserProfile toUserProfile(String uid, Map<String, Object> fields) {
+        if (fields == null || fields.isEmpty()) {
+            return null;
+        }
+
+        return new UserProfile(
+                uid,
+                getString(fields, "firstName"),
+                getString(fields, "lastName"),
+                getString(fields, "email"),
+                getString(fields, "profilePicUrl"),
+                getBoolean(fields, "isActive"));
+    }
+
+    /**
+     * friend_requests/{requestId}
+     */
+    public static FriendRequest toFriendRequest(DataSnapshot snapshot) {
+        Map<String, Object> fields = asMap(snapshot);
+        if (fields == null) {
+            return null;
+        }
+
+        String senderId = getString(fields, "sender_id");
+        String receiverId = getString(fields, "receiver_id");
+        String status = getString(fields, "status");
+
+        if (senderId == null || receiverId == null || status == null) {
+            return null;
+        }
+        return new FriendRequest(snapshot.getKey(), senderId, receiverId, status);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(DataSnapshot snapshot) {
+        Object value = snapshot.getValue();
+        return value instanceof Map ? (Map<String, Object>) value : null;
+    }
+
+    private static String getString(Map<String, Object> fields, String key) {
+        Object value = fields.get(key);
+        if (value == null || value instanceof String) {
+            return (String) value;
+        }
+        return String.valueOf(value); // Numbers written by older clients
+    }
+
+    private static boolean getBoolean(Map<String, Object> fields, String key) {
+        return Boolean.TRUE.equals(fields.get(key));
+    }
+
+    private static Map<String, Boolean> getBooleanMap(Map<String, Object> fields, String key) {
+        Map<String, Boolean> result = new HashMap<>();
+        Object value = fields.get(key);
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                result.put(String.valueOf(entry.getKey()), Boolean.TRUE.equals(entry.getValue()));
+            }
+        }
+        return result;
+    }
+}
@@ -1,9 +1,14 @@
 package com.example.chaspy.data.model;
 
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
 public class Conversation {
     private String conversationId;
     private String lastMessage;
     private String lastMessageTime;
+    // lastMessageTime parsed once, so ordering never has to parse strings
+    private long lastMessageTimeMillis;
     private String friendId;
     private String friendUsername;
     private String profilePicUrl;
@@ -17,6 +22,7 @@ public class Conversation {
         this.conversationId = conversationId;
         this.lastMessage = lastMessage;
         this.lastMessageTime = lastMessageTime;
+        this.lastMessageTimeMillis = parseTime(lastMessageTime);
         this.friendId = friendId;
         this.friendUsername = friendUsername;
         this.profilePicUrl = profilePicUrl;
@@ -26,6 +32,7 @@ public class Conversation {
         this.conversationId = conversationId;
         this.lastMessage = lastMessage;
         this.lastMessageTime = lastMessageTime;
+        this.lastMessageTimeMillis = parseTime(lastMessageTime);
         this.friendId = friendId;
         this.friendUsername = friendUsername;
         this.profilePicUrl = profilePicUrl;
@@ -54,6 +61,11 @@ public class Conversation {
 
     public void setLastMessageTime(String lastMessageTime) {
         this.lastMessageTime = lastMessageTime;
+        this.lastMessageTimeMillis = parseTime(lastMessageTime);
+    }
+
+    public long getLastMessageTimeMillis() {
+        return lastMessageTimeMillis;
     }
 
     public String getFriendId() {
@@ -87,4 +99,21 @@ public class Conversation {
     public void setThemeColor(String themeColor) {
         this.themeColor = themeColor;
     }
+
+    // Epoch millis of a stored last_message_time, 0 if it can't be read
+    public static long parseTime(String time) {
+        if (time == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(time);
+        } catch (NumberFormatException e) {
+            // Some older conversations store an ISO-8601 time instead of milliseconds
+            try {
+                return Instant.parse(time).toEpochMilli();
+            } catch (DateTimeParseException ignored) {
+                return 0;
+            }
+        }
+    }
 }
@@ -1,61 +1,80 @@
 package com.example.chaspy.data.model;
 
+/**
+ * A chat message. The timestamp is parsed once when the message is mapped,
+ * and sender IDs are interned since a conversation only has two of them.
+ */
 public class Message {
-    private String messageId;
-    private String senderId;
-    private String messageContent;
-    private String messageType;
-    private String timestamp;
-    
-    // Empty constructor needed for Firebase
-    public Message() {
-    }
-    
+    private final String messageId;
+    private final String senderId;
+    private final String messageContent;
+    private final MessageType messageType;
+    private final long timestamp;
+    private final boolean pending;
+
     public Message(String messageId, String senderId, String messageContent, String messageType, String timestamp) {
+        this(messageId, senderId, messageContent, MessageType.fromValue(messageType), parseTimestamp(timestamp));
+    }
+
+    public Message(String messageId, String senderId, String messageContent, MessageType messageType, long timestamp) {
+        this(messageId, senderId, messageContent, messageType, timestamp, false);
+    }
+
+    public Message(String messageId, String senderId, String messageContent, MessageType messageType, long timestamp,
+                   boolean pending) {
         this.messageId = messageId;
-        this.senderId = senderId;
+        this.senderId = senderId != null ? senderId.intern() : null;
         this.messageContent = messageContent;
         this.messageType = messageType;
         this.timestamp = timestamp;
+        this.pending = pending;
     }
-    
+
     public String getMessageId() {
         return messageId;
     }
-    
-    public void setMessageId(String messageId) {
-        this.messageId = messageId;
-    }
-    
+
     public String getSenderId() {
         return senderId;
     }
-    
-    public void setSenderId(String senderId) {
-        this.senderId = senderId;
-    }
-    
+
     public String getMessageContent() {
         return messageContent;
     }
-    
-    public void setMessageContent(String messageContent) {
-        this.messageContent = messageContent;
-    }
-    
-    public String getMessageType() {
+
+    public MessageType getMessageType() {
         return messageType;
     }
-    
-    public void setMessageType(String messageType) {
-        this.messageType = messageType;
-    }
-    
-    public String getTimestamp() {
+
+    /**
+     * Epoch millis, or 0 if the stored value could not be parsed
+     */
+    public long getTimestamp() {
         return timestamp;
     }
-    
-    public void setTimestamp(String timestamp) {
-        this.timestamp = timestamp;
+
+    /**
+     * True while the message sits in the local outbox and has not been acknowledged by the server
+     */
+    public boolean isPending() {
+        return pending;
+    }
+
+    /**
+     * Copy of this message marked as delivered
+     */
+    public Message asDelivered() {
+        return pending ? new Message(messageId, senderId, messageContent, messageType, timestamp, false) : this;
+    }
+
+    public static long parseTimestamp(String timestamp) {
+        if (timestamp == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(timestamp);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 }
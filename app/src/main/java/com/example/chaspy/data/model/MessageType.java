@@ -0,0 +1,29 @@
+package com.example.chaspy.data.model;
+
+public enum MessageType {
+    TEXT("text"),
+    IMAGE("image"),
+    UNKNOWN("unknown");
+
+    private final String value;
+
+    MessageType(String value) {
+        this.value = value;
+    }
+
+    /**
+     * The value stored in the database's message_type field
+     */
+    public String getValue() {
+        return value;
+    }
+
+    public static MessageType fromValue(String value) {
+        for (MessageType type : values()) {
+            if (type.value.equals(value)) {
+                return type;
+            }
+        }
+        return UNKNOWN;
+    }
+}
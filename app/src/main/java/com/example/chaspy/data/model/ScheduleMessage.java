@@ -7,6 +7,9 @@ public class ScheduleMessage {
     private String messageContent;
     private long sendingTime;
     private String conversationId; // New field
+    // Chat message key and time, claimed once when delivery starts so retries reuse them
+    private String messageKey;
+    private long deliveredAt;
 
     // Default constructor required for Firebase
     public ScheduleMessage() {
@@ -80,4 +83,17 @@ public class ScheduleMessage {
     public void setConversationId(String conversationId) {
         this.conversationId = conversationId;
     }
+
+    public String getMessageKey() {
+        return messageKey;
+    }
+
+    public long getDeliveredAt() {
+        return deliveredAt;
+    }
+
+    public void setDelivery(String messageKey, long deliveredAt) {
+        this.messageKey = messageKey;
+        this.deliveredAt = deliveredAt;
+    }
 }
@@ -0,0 +1,52 @@
+package com.example.chaspy.data.model;
+
+/**
+ * The public part of a user that other screens display: name, avatar and status.
+ * Unlike User it carries no friend or conversation maps, so it is cheap to cache.
+ */
+public class UserProfile {
+    private final String uid;
+    private final String firstName;
+    private final String lastName;
+    private final String email;
+    private final String profilePicUrl;
+    private final boolean isActive;
+
+    public UserProfile(String uid, String firstName, String lastName, String email, String profilePicUrl,
+                       boolean isActive) {
+        this.uid = uid;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.email = email;
+        this.profilePicUrl = profilePicUrl;
+        this.isActive = isActive;
+    }
+
+    public String getUid() {
+        return uid;
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public String getFullName() {
+        return firstName + " " + lastName;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getProfilePicUrl() {
+        return profilePicUrl;
+    }
+
+    public boolean isActive() {
+        return isActive;
+    }
+}
@@ -1,39 +1,191 @@
 package com.example.chaspy.data.repository;
 
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.example.chaspy.data.local.LocalMessageStore;
+import com.example.chaspy.data.manager.SyncPolicyManager;
 import com.example.chaspy.data.model.Message;
+import com.example.chaspy.data.model.MessageType;
 import com.example.chaspy.data.service.ChatFirebaseService;
+import com.example.chaspy.service.OutboxWorker;
 
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ChatRepository {
+    public static final int PAGE_SIZE = 30;
+
+    // Single disk thread so reads and writes to the local store stay ordered
+    private static final ExecutorService diskExecutor = Executors.newSingleThreadExecutor();
+
+    private final Context appContext;
     private final ChatFirebaseService firebaseService;
-    
-    public ChatRepository() {
+    private final LocalMessageStore localStore;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public ChatRepository(Context context) {
+        appContext = context.getApplicationContext();
         firebaseService = new ChatFirebaseService();
+        localStore = LocalMessageStore.getInstance(context);
     }
-    
+
+    /**
+     * Read the messages cached on disk for a conversation (oldest first).
+     * The callback runs on the main thread.
+     */
+    public void getCachedMessages(String conversationId, ChatCallback<List<Message>> callback) {
+        diskExecutor.execute(() -> {
+            List<Message> cached = localStore.getMessages(conversationId);
+            // Only delivered messages count, unsent ones are not on the server yet
+            String highWatermark = localStore.getHighWatermark(conversationId);
+            mainHandler.post(() -> {
+                firebaseService.setHighWatermark(highWatermark);
+                callback.onSuccess(cached);
+            });
+        });
+    }
+
     public void getMessages(String conversationId, ChatCallback<List<Message>> callback) {
-        firebaseService.getMessages(conversationId, callback);
+        long startedAt = SystemClock.elapsedRealtime();
+        firebaseService.getMessagesPage(conversationId, null, PAGE_SIZE, persisting(conversationId,
+                new ChatCallback<List<Message>>() {
+                    @Override
+                    public void onSuccess(List<Message> messages) {
+                        // Sizes the conversation for the keepSynced budget
+                        SyncPolicyManager syncPolicy = SyncPolicyManager.getInstance();
+                        if (syncPolicy != null) {
+                            syncPolicy.recordMessageRead(conversationId, SystemClock.elapsedRealtime() - startedAt);
+                            syncPolicy.recordMessagesLoaded(conversationId, messages);
+                        }
+                        callback.onSuccess(messages);
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        callback.onError(error);
+                    }
+                }));
     }
-    
-    public void sendMessage(String conversationId, String senderId, String messageText, ChatCallback<Void> callback) {
-        String timestamp = String.valueOf(System.currentTimeMillis());
-        firebaseService.sendMessage(conversationId, senderId, messageText, "text", timestamp, callback);
+
+    /**
+     * Fetch only what is newer than the newest cached message, at most one page.
+     * A full page means more was missed than one page holds. The cache would then have a gap,
+     * so it is dropped instead of extended, and the caller should load the newest page.
+     */
+    public void getMessagesAfter(String conversationId, String afterKey, ChatCallback<List<Message>> callback) {
+        firebaseService.getMessagesAfter(conversationId, afterKey, PAGE_SIZE, new ChatCallback<List<Message>>() {
+            @Override
+            public void onSuccess(List<Message> messages) {
+                if (messages.size() >= PAGE_SIZE) {
+                    // Unsent messages live in the outbox and are kept
+                    diskExecutor.execute(() -> localStore.clearConversation(conversationId));
+                } else if (!messages.isEmpty()) {
+                    diskExecutor.execute(() -> localStore.saveMessages(conversationId, messages));
+                }
+                callback.onSuccess(messages);
+            }
+
+            @Override
+            public void onError(String error) {
+                callback.onError(error);
+            }
+        });
     }
-    
+
+    public void getOlderMessages(String conversationId, String beforeKey, ChatCallback<List<Message>> callback) {
+        firebaseService.getMessagesPage(conversationId, beforeKey, PAGE_SIZE, persisting(conversationId, callback));
+    }
+
+    /**
+     * Send a text message through the outbox.
+     * The pending message is returned right away so it can be shown before the server answers,
+     * and the callback receives the delivered copy once the write is acknowledged.
+     * Until then the message stays on disk and OutboxWorker retries it under a key made when it
+     * delivers it, which replaces the pending copy once it arrives.
+     *
+     * @return The pending message, or null if no key could be generated
+     */
+    public Message sendMessage(String conversationId, String senderId, String receiverId, String messageText,
+                               ChatCallback<Message> callback) {
+        String messageId = firebaseService.newMessageKey(conversationId);
+        if (messageId == null) {
+            callback.onError("Failed to generate message ID");
+            return null;
+        }
+
+        Message pending = new Message(messageId, senderId, messageText, MessageType.TEXT,
+                System.currentTimeMillis(), true);
+
+        diskExecutor.execute(() -> {
+            localStore.addToOutbox(conversationId, receiverId, pending);
+            OutboxWorker.enqueue(appContext);
+        });
+
+        firebaseService.sendMessage(conversationId, messageId, senderId, receiverId, messageText,
+                MessageType.TEXT.getValue(), String.valueOf(pending.getTimestamp()), new ChatCallback<Void>() {
+                    @Override
+                    public void onSuccess(Void result) {
+                        Message delivered = pending.asDelivered();
+                        diskExecutor.execute(() -> localStore.markDelivered(conversationId, delivered));
+                        callback.onSuccess(delivered);
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        // Still in the outbox, OutboxWorker will retry it
+                        callback.onError(error);
+                    }
+                });
+
+        return pending;
+    }
+
     public void startMessageListener(String conversationId, MessageListener listener) {
-        firebaseService.listenForNewMessages(conversationId, listener);
+        firebaseService.listenForNewMessages(conversationId, new MessageListener() {
+            @Override
+            public void onNewMessage(Message message) {
+                diskExecutor.execute(() -> localStore.saveMessage(conversationId, message));
+                listener.onNewMessage(message);
+            }
+
+            @Override
+            public void onError(String error) {
+                listener.onError(error);
+            }
+        });
     }
-    
+
     public void stopMessageListener() {
         firebaseService.removeMessageListener();
     }
-    
+
+    // Write every page that comes over the network through to the local store
+    private ChatCallback<List<Message>> persisting(String conversationId, ChatCallback<List<Message>> callback) {
+        return new ChatCallback<List<Message>>() {
+            @Override
+            public void onSuccess(List<Message> messages) {
+                if (!messages.isEmpty()) {
+                    diskExecutor.execute(() -> localStore.saveMessages(conversationId, messages));
+                }
+                callback.onSuccess(messages);
+            }
+
+            @Override
+            public void onError(String error) {
+                callback.onError(error);
+            }
+        };
+    }
+
     public interface ChatCallback<T> {
         void onSuccess(T result);
         void onError(String error);
     }
-    
+
     public interface MessageListener {
         void onNewMessage(Message message);
         void onError(String error);
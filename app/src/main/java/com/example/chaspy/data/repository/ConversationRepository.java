@@ -1,11 +1,12 @@
 package com.example.chaspy.data.repository;
 
+import android.os.SystemClock;
+
+import com.example.chaspy.data.manager.SyncPolicyManager;
 import com.example.chaspy.data.model.Conversation;
 import com.example.chaspy.data.service.ConversationFirebaseService;
 import com.example.chaspy.data.service.MessageListener;
 
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 public class ConversationRepository {
@@ -20,24 +21,15 @@ public class ConversationRepository {
     }
 
     public void getConversations(String userId, final RepositoryCallback callback) {
+        long startedAt = SystemClock.elapsedRealtime();
         conversationService.getConversations(userId, new ConversationFirebaseService.FirebaseCallback() {
             @Override
             public void onSuccess(List<Conversation> conversations) {
-                // Sort conversations by time (newest first)
-                Collections.sort(conversations, new Comparator<Conversation>() {
-                    @Override
-                    public int compare(Conversation c1, Conversation c2) {
-                        try {
-                            // Try to parse as long for more accurate comparison
-                            long time1 = Long.parseLong(c1.getLastMessageTime());
-                            long time2 = Long.parseLong(c2.getLastMessageTime());
-                            return Long.compare(time2, time1); // Reverse order (newest first)
-                        } catch (NumberFormatException e) {
-                            // Fall back to string comparison
-                            return c2.getLastMessageTime().compareTo(c1.getLastMessageTime());
-                        }
-                    }
-                });
+                SyncPolicyManager syncPolicy = SyncPolicyManager.getInstance();
+                if (syncPolicy != null) {
+                    syncPolicy.recordInboxRead(SystemClock.elapsedRealtime() - startedAt);
+                }
+                // Ordering (newest first) is kept by ConversationViewModel's index
                 callback.onSuccess(conversations);
             }
 
@@ -48,25 +40,21 @@ public class ConversationRepository {
         });
     }
 
-    public void startMessageListener(String userId, final MessageUpdateCallback callback) {
+    /**
+     * Listen for conversations that change after the inbox was loaded.
+     * @param sinceTimeMillis last message time of the newest loaded conversation, or 0
+     */
+    public void startMessageListener(String userId, long sinceTimeMillis, final MessageUpdateCallback callback) {
         // Prevent multiple listeners
         if (isListening) {
             stopMessageListener();
         }
         
         isListening = true;
-        messageListener.startListening(userId, new MessageListener.MessageUpdateCallback() {
+        messageListener.startListening(userId, sinceTimeMillis, new MessageListener.MessageUpdateCallback() {
             @Override
-            public void onNewMessage(String conversationId, String message, String timestamp, String senderId) {
-                // Skip empty messages
-                if (message == null || message.trim().isEmpty()) {
-                    return;
-                }
-                
-                // Update the conversation in Firebase
-                conversationService.updateConversation(conversationId, message, timestamp);
-                
-                // Get user info for the updated conversation
+            public void onConversationChanged(String conversationId, String lastMessageTime) {
+                // Get the changed conversation with its friend's info
                 conversationService.getSingleConversationWithDetails(conversationId, userId, 
                     new ConversationFirebaseService.SingleConversationCallback() {
                         @Override
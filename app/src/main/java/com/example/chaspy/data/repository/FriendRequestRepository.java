@@ -0,0 +1,173 @@
+package com.example.chaspy.data.repository;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.example.chaspy.data.mapper.SnapshotMapper;
+import com.example.chaspy.data.model.FriendRequest;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared, live views of the signed-in user's pending friend requests.
+ *
+ * Requests are read with indexed queries (friend_requests ordered by receiver_id or sender_id,
+ * equal to the user) instead of the whole friend_requests node. Every screen observes the same
+ * LiveData, so each query has one listener however many observers there are; it is attached
+ * while anything is observing and detached when the last observer stops.
+ *
+ * friend_requests needs ".indexOn": ["receiver_id", "sender_id"] in the database rules.
+ */
+public class FriendRequestRepository {
+    private static final String TAG = "FriendRequestRepository";
+    private static final int COMPACTION_BATCH_SIZE = 500;
+
+    private static FriendRequestRepository instance;
+
+    private final String userId;
+    private final RequestsLiveData receivedRequests;
+    private final RequestsLiveData sentRequests;
+    private final MutableLiveData<String> errors = new MutableLiveData<>();
+
+    private FriendRequestRepository(String userId) {
+        this.userId = userId;
+        Query requests = FirebaseDatabase.getInstance().getReference("friend_requests");
+        receivedRequests = new RequestsLiveData(requests.orderByChild("receiver_id").equalTo(userId));
+        sentRequests = new RequestsLiveData(requests.orderByChild("sender_id").equalTo(userId));
+    }
+
+    /**
+     * The repository for the given user; a different user gets fresh subscriptions.
+     * Call from the main thread.
+     */
+    public static FriendRequestRepository getInstance(String userId) {
+        if (instance == null || !instance.userId.equals(userId)) {
+            instance = new FriendRequestRepository(userId);
+        }
+        return instance;
+    }
+
+    /**
+     * Key of the request from one user to another under friend_requests, so whether a request
+     * exists, and cancelling it, take one direct read or write.
+     */
+    public static String requestId(String senderId, String receiverId) {
+        return senderId + "_" + receiverId;
+    }
+
+    /**
+     * Delete the accepted and rejected requests the user sent or received, in batched
+     * multi-path updates. Requests answered by older app versions were kept with their status.
+     */
+    public static Task<Void> compactResolvedRequests(String userId) {
+        Query requests = FirebaseDatabase.getInstance().getReference("friend_requests");
+        Task<DataSnapshot> received = requests.orderByChild("receiver_id").equalTo(userId).get();
+        Task<DataSnapshot> sent = requests.orderByChild("sender_id").equalTo(userId).get();
+
+        return Tasks.whenAllSuccess(received, sent).continueWithTask(readTask -> {
+            if (!readTask.isSuccessful()) {
+                throw readTask.getException();
+            }
+
+            List<String> resolvedIds = new ArrayList<>();
+            for (Object result : readTask.getResult()) {
+                for (DataSnapshot requestSnapshot : ((DataSnapshot) result).getChildren()) {
+                    FriendRequest request = SnapshotMapper.toFriendRequest(requestSnapshot);
+                    if (request != null && !"pending".equals(request.getStatus())) {
+                        resolvedIds.add(requestSnapshot.getKey());
+                    }
+                }
+            }
+
+            Task<Void> deleted = Tasks.forResult(null);
+            for (int start = 0; start < resolvedIds.size(); start += COMPACTION_BATCH_SIZE) {
+                Map<String, Object> deletes = new HashMap<>();
+                for (String requestId : resolvedIds.subList(start,
+                        Math.min(start + COMPACTION_BATCH_SIZE, resolvedIds.size()))) {
+                    deletes.put(requestId, null);
+                }
+                // One batch at a time, so a failure stops before the next one is sent
+                deleted = deleted.continueWithTask(previous -> {
+                    if (!previous.isSuccessful()) {
+                        throw previous.getException();
+                    }
+                    return requests.getRef().updateChildren(deletes);
+                });
+            }
+            if (!resolvedIds.isEmpty()) {
+                Log.d(TAG, "Compacting " + resolvedIds.size() + " resolved friend requests");
+            }
+            return deleted;
+        });
+    }
+
+    /**
+     * Pending requests sent to the user.
+     */
+    public LiveData<List<FriendRequest>> getReceivedRequests() {
+        return receivedRequests;
+    }
+
+    /**
+     * Pending requests the user has sent.
+     */
+    public LiveData<List<FriendRequest>> getSentRequests() {
+        return sentRequests;
+    }
+
+    public LiveData<String> getErrors() {
+        return errors;
+    }
+
+    private class RequestsLiveData extends LiveData<List<FriendRequest>> {
+        private final Query query;
+        private final ValueEventListener listener = new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot snapshot) {
+                List<FriendRequest> pending = new ArrayList<>();
+                for (DataSnapshot requestSnapshot : snapshot.getChildren()) {
+                    FriendRequest request = SnapshotMapper.toFriendRequest(requestSnapshot);
+                    if (request != null && "pending".equals(request.getStatus())) {
+                        pending.add(request);
+                    }
+                }
+                // Shared by every observer, so nobody may change it
+                setValue(Collections.unmodifiableList(pending));
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                Log.e(TAG, "Friend requests query cancelled: " + error.getMessage());
+                errors.setValue(error.getMessage());
+            }
+        };
+
+        RequestsLiveData(Query query) {
+            this.query = query;
+        }
+
+        @Override
+        protected void onActive() {
+            query.addValueEventListener(listener);
+        }
+
+        @Override
+        protected void onInactive() {
+            query.removeEventListener(listener);
+        }
+    }
+}
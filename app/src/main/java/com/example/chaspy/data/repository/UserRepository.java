@@ -3,6 +3,7 @@ package com.example.chaspy.data.repository;
 import android.content.Context;
 import android.net.Uri;
 
+import com.example.chaspy.data.manager.UserProfileCache;
 import com.example.chaspy.data.service.CloudinaryService;
 import com.example.chaspy.data.service.UserFirebaseService;
 import com.google.firebase.auth.AuthResult;
@@ -43,6 +44,7 @@ public class UserRepository {
     // Sign out the current user
     public void signOut() {
         userFirebaseService.signOut();
+        UserProfileCache.getInstance().clear();
     }
     
     // Resend verification email
@@ -0,0 +1,186 @@
+package com.example.chaspy.data.search;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Name search shared by the inbox, the friends list and friend requests.
+ *
+ * An item matches when every word of the query is the start of a word of its name, ignoring
+ * case and diacritics ("ng va" finds "Nguyễn Văn An"). Names are normalized once when the
+ * items are set and their words are kept in a sorted prefix index. A query that extends the
+ * previous one only re-checks the previous results.
+ *
+ * Indexing and searching run on a background thread. A newer search cancels older ones, and
+ * only the latest search's results are delivered, on the main thread, in the items' order.
+ */
+public class SearchIndex<T> {
+    // One thread for every index, so a search always runs after the items it searches were indexed
+    private static final ExecutorService searchExecutor = Executors.newSingleThreadExecutor();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final Function<T, String> nameOf;
+
+    // Written on the main thread only
+    private volatile int generation = 0;
+    private List<T> items = Collections.emptyList();
+    private Future<?> pendingSearch;
+
+    // Used on the search thread only
+    private List<T> indexedItems = Collections.emptyList();
+    private String[][] itemTokens = new String[0][];
+    private final TreeMap<String, BitSet> tokenIndex = new TreeMap<>();
+    private String lastQuery = "";
+    private BitSet lastMatches;
+
+    public SearchIndex(Function<T, String> nameOf) {
+        this.nameOf = nameOf;
+    }
+
+    /**
+     * Replace the searchable items. Call from the main thread.
+     */
+    public void setItems(List<T> newItems) {
+        List<T> snapshot = new ArrayList<>(newItems);
+        items = snapshot;
+        searchExecutor.execute(() -> buildIndex(snapshot));
+    }
+
+    /**
+     * Search the current items. Call from the main thread.
+     * An empty query returns every item without leaving the main thread.
+     */
+    public void search(String query, ResultCallback<T> callback) {
+        int searchGeneration = ++generation;
+        if (pendingSearch != null) {
+            pendingSearch.cancel(false);
+        }
+
+        String normalizedQuery = TextNormalizer.normalize(query);
+        if (normalizedQuery.isEmpty()) {
+            pendingSearch = null;
+            callback.onResults(new ArrayList<>(items));
+            return;
+        }
+
+        pendingSearch = searchExecutor.submit(() -> {
+            if (searchGeneration != generation) {
+                return;
+            }
+            List<T> results = findMatches(normalizedQuery);
+            mainHandler.post(() -> {
+                if (searchGeneration == generation) {
+                    callback.onResults(results);
+                }
+            });
+        });
+    }
+
+    /**
+     * Drop any search that hasn't delivered yet, e.g. when the screen goes away.
+     */
+    public void cancel() {
+        generation++;
+        if (pendingSearch != null) {
+            pendingSearch.cancel(false);
+            pendingSearch = null;
+        }
+    }
+
+    private void buildIndex(List<T> snapshot) {
+        indexedItems = snapshot;
+        itemTokens = new String[snapshot.size()][];
+        tokenIndex.clear();
+        lastQuery = "";
+        lastMatches = null;
+
+        for (int i = 0; i < snapshot.size(); i++) {
+            String[] tokens = TextNormalizer.tokenize(TextNormalizer.normalize(nameOf.apply(snapshot.get(i))));
+            itemTokens[i] = tokens;
+            for (String token : tokens) {
+                BitSet postings = tokenIndex.get(token);
+                if (postings == null) {
+                    postings = new BitSet();
+                    tokenIndex.put(token, postings);
+                }
+                postings.set(i);
+            }
+        }
+    }
+
+    private List<T> findMatches(String normalizedQuery) {
+        String[] queryTokens = TextNormalizer.tokenize(normalizedQuery);
+
+        BitSet matches;
+        if (lastMatches != null && normalizedQuery.startsWith(lastQuery)) {
+            // A longer query can only match a subset of what the shorter one matched
+            matches = new BitSet();
+            for (int i = lastMatches.nextSetBit(0); i >= 0; i = lastMatches.nextSetBit(i + 1)) {
+                if (matchesAll(itemTokens[i], queryTokens)) {
+                    matches.set(i);
+                }
+            }
+        } else {
+            matches = null;
+            for (String queryToken : queryTokens) {
+                BitSet tokenMatches = itemsWithWordStarting(queryToken);
+                if (matches == null) {
+                    matches = tokenMatches;
+                } else {
+                    matches.and(tokenMatches);
+                }
+                if (matches.isEmpty()) {
+                    break;
+                }
+            }
+        }
+
+        lastQuery = normalizedQuery;
+        lastMatches = matches;
+
+        List<T> results = new ArrayList<>(matches.cardinality());
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            results.add(indexedItems.get(i));
+        }
+        return results;
+    }
+
+    private BitSet itemsWithWordStarting(String prefix) {
+        BitSet result = new BitSet();
+        for (Map.Entry<String, BitSet> entry : tokenIndex.subMap(prefix, true, prefix + Character.MAX_VALUE, false).entrySet()) {
+            result.or(entry.getValue());
+        }
+        return result;
+    }
+
+    private static boolean matchesAll(String[] nameTokens, String[] queryTokens) {
+        for (String queryToken : queryTokens) {
+            boolean found = false;
+            for (String nameToken : nameTokens) {
+                if (nameToken.startsWith(queryToken)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public interface ResultCallback<T> {
+        void onResults(List<T> results);
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.chaspy.data.search;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Folds names and queries to a form that can be compared directly:
+ * lower case, no diacritics ("Nguyễn Đức" becomes "nguyen duc") and single spaces.
+ */
+public final class TextNormalizer {
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private TextNormalizer() {
+    }
+
+    public static String normalize(String text) {
+        if (text == null || text.isEmpty()) {
+            return "";
+        }
+
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        String stripped = COMBINING_MARKS.matcher(decomposed).replaceAll("");
+        // đ/Đ is a letter of its own, not d plus a mark, so NFD leaves it alone
+        stripped = stripped.replace('đ', 'd').replace('Đ', 'D');
+        return WHITESPACE.matcher(stripped.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+    }
+
+    /**
+     * Split normalized text into its words.
+     */
+    public static String[] tokenize(String normalized) {
+        return normalized.isEmpty() ? new String[0] : normalized.split(" ");
+    }
+}
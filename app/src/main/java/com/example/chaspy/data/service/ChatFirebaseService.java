@@ -3,55 +3,69 @@ package com.example.chaspy.data.service;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.example.chaspy.data.mapper.SnapshotMapper;
 import com.example.chaspy.data.model.Message;
 import com.example.chaspy.data.repository.ChatRepository;
+import com.google.android.gms.tasks.Task;
 import com.google.firebase.database.ChildEventListener;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
 import com.google.firebase.database.ValueEventListener;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public class ChatFirebaseService {
+    // Alphabet and layout of Firebase push keys: 8 characters of time, then 12 random ones
+    private static final String PUSH_CHARS = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+    private static final int PUSH_TIME_LENGTH = 8;
+    private static final int PUSH_KEY_LENGTH = 20;
+    
     private final DatabaseReference databaseRef;
     private ChildEventListener messageListener;
-    private Set<String> loadedMessageIds = new HashSet<>();
+    private Query messageQuery;
+    // Newest push key already handed out; the live listener starts right after it
+    private String newestLoadedKey;
     
     public ChatFirebaseService() {
         databaseRef = FirebaseDatabase.getInstance().getReference();
     }
     
-    public void getMessages(String conversationId, final ChatRepository.ChatCallback<List<Message>> callback) {
-        DatabaseReference messagesRef = databaseRef.child("messages").child(conversationId);
+    /**
+     * Load one page of messages ordered by push key (oldest first within the page).
+     * Pass a null beforeKey to get the newest page, or the oldest loaded key to get
+     * the page right before it.
+     */
+    public void getMessagesPage(String conversationId, String beforeKey, int pageSize,
+                                final ChatRepository.ChatCallback<List<Message>> callback) {
+        Query pageQuery = databaseRef.child("messages").child(conversationId).orderByKey();
+        if (beforeKey != null) {
+            pageQuery = pageQuery.endBefore(beforeKey);
+        }
+        pageQuery = pageQuery.limitToLast(pageSize);
         
-        messagesRef.addListenerForSingleValueEvent(new ValueEventListener() {
+        FreshRead.once(pageQuery, new ValueEventListener() {
             @Override
             public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
                 List<Message> messages = new ArrayList<>();
-                loadedMessageIds.clear(); // Reset loaded message IDs
                 
                 for (DataSnapshot snapshot : dataSnapshot.getChildren()) {
-                    String messageId = snapshot.getKey();
-                    String senderId = snapshot.child("sender_id").getValue(String.class);
-                    String messageContent = snapshot.child("message_content").getValue(String.class);
-                    String messageType = snapshot.child("message_type").getValue(String.class);
-                    String timestamp = snapshot.child("timestamp").getValue(String.class);
-                    
-                    if (messageId != null && senderId != null && messageContent != null && 
-                        messageType != null && timestamp != null) {
-                        Message message = new Message(messageId, senderId, messageContent, messageType, timestamp);
+                    Message message = SnapshotMapper.toMessage(snapshot);
+                    if (message != null) {
                         messages.add(message);
-                        loadedMessageIds.add(messageId); // Track loaded messages
                     }
                 }
                 
+                // Children arrive in key order, so on a fresh open the last one is the watermark
+                if (beforeKey == null) {
+                    newestLoadedKey = messages.isEmpty() ? null : messages.get(messages.size() - 1).getMessageId();
+                }
+                
                 callback.onSuccess(messages);
             }
             
@@ -62,67 +76,187 @@ public class ChatFirebaseService {
         });
     }
     
-    public void sendMessage(String conversationId, String senderId, String messageText, String messageType, 
-                           String timestamp, final ChatRepository.ChatCallback<Void> callback) {
-        // Create message data
-        Map<String, Object> messageData = new HashMap<>();
-        messageData.put("sender_id", senderId);
-        messageData.put("message_content", messageText);
-        messageData.put("message_type", messageType);
-        messageData.put("timestamp", timestamp);
-        
-        // Get references to database locations that need to be updated
-        DatabaseReference messagesRef = databaseRef.child("messages").child(conversationId);
-        DatabaseReference conversationsRef = databaseRef.child("conversations").child(conversationId);
+    /**
+     * Load up to pageSize messages right after the given key (oldest first), e.g. what
+     * arrived since the newest locally cached message. A full page means there may be more.
+     */
+    public void getMessagesAfter(String conversationId, String afterKey, int pageSize,
+                                 final ChatRepository.ChatCallback<List<Message>> callback) {
+        Query newerQuery = databaseRef.child("messages").child(conversationId)
+                .orderByKey()
+                .startAfter(afterKey)
+                .limitToFirst(pageSize);
         
+        FreshRead.once(newerQuery, new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                List<Message> messages = new ArrayList<>();
+                
+                for (DataSnapshot snapshot : dataSnapshot.getChildren()) {
+                    Message message = SnapshotMapper.toMessage(snapshot);
+                    if (message != null) {
+                        messages.add(message);
+                    }
+                }
+                
+                if (!messages.isEmpty()) {
+                    advanceWatermark(messages.get(messages.size() - 1).getMessageId());
+                }
+                
+                callback.onSuccess(messages);
+            }
+            
+            @Override
+            public void onCancelled(@NonNull DatabaseError databaseError) {
+                callback.onError(databaseError.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Set the newest key that was loaded from somewhere other than this service
+     * (the local cache), so the live listener starts after it.
+     */
+    public void setHighWatermark(String messageKey) {
+        newestLoadedKey = messageKey;
+    }
+    
+    private void advanceWatermark(String messageKey) {
+        if (newestLoadedKey == null || messageKey.compareTo(newestLoadedKey) > 0) {
+            newestLoadedKey = messageKey;
+        }
+    }
+    
+    /**
+     * Generate a push key for a new message. Keys are created on the client,
+     * so this works offline.
+     */
+    public String newMessageKey(String conversationId) {
+        return databaseRef.child("messages").child(conversationId).push().getKey();
+    }
+    
+    public void sendMessage(String conversationId, String senderId, String receiverId, String messageText,
+                            String messageType, String timestamp, final ChatRepository.ChatCallback<Void> callback) {
         // Create a new message with a generated key
-        DatabaseReference newMessageRef = messagesRef.push();
-        String messageId = newMessageRef.getKey();
+        String messageId = newMessageKey(conversationId);
         
         if (messageId == null) {
             callback.onError("Failed to generate message ID");
             return;
         }
         
-        // Write the message data
-        newMessageRef.setValue(messageData)
-            .addOnSuccessListener(aVoid -> {
-                // Update the conversation's last message information
-                Map<String, Object> conversationUpdates = new HashMap<>();
-                conversationUpdates.put("last_message", messageText);
-                conversationUpdates.put("last_message_time", timestamp);
-                
-                conversationsRef.updateChildren(conversationUpdates)
-                    .addOnSuccessListener(aVoid1 -> callback.onSuccess(null))
-                    .addOnFailureListener(e -> callback.onError("Failed to update conversation: " + e.getMessage()));
-            })
+        sendMessage(conversationId, messageId, senderId, receiverId, messageText, messageType, timestamp, callback);
+    }
+    
+    /**
+     * Write a message under a key chosen by the caller. Writing the same key
+     * again overwrites it with the same data, so retries are idempotent.
+     */
+    public void sendMessage(String conversationId, String messageId, String senderId, String receiverId,
+                            String messageText, String messageType, String timestamp,
+                            final ChatRepository.ChatCallback<Void> callback) {
+        Map<String, Object> updates = new HashMap<>();
+        putMessage(updates, conversationId, messageId, senderId, receiverId, messageText, messageType, timestamp);
+        
+        databaseRef.updateChildren(updates)
+            .addOnSuccessListener(aVoid -> callback.onSuccess(null))
             .addOnFailureListener(e -> callback.onError("Failed to send message: " + e.getMessage()));
     }
     
+    /**
+     * Read a single message from the server, e.g. to see whether an earlier write of it landed.
+     */
+    public Task<DataSnapshot> readMessage(String conversationId, String messageId) {
+        return databaseRef.child("messages").child(conversationId).child(messageId).get();
+    }
+    
+    /**
+     * Same write as sendMessage with a caller-chosen key, reporting the database's error
+     * so a rejected write (e.g. permission denied) can be told apart from one that may
+     * still succeed later.
+     */
+    public void writeMessage(String conversationId, String messageId, String senderId, String receiverId,
+                             String messageText, String messageType, String timestamp,
+                             DatabaseReference.CompletionListener listener) {
+        Map<String, Object> updates = new HashMap<>();
+        putMessage(updates, conversationId, messageId, senderId, receiverId, messageText, messageType, timestamp);
+        
+        databaseRef.updateChildren(updates, listener);
+    }
+    
+    /**
+     * Add a message to a multi-path update: the message, the conversation's last message
+     * information and both users' inbox index entries. Written together, the preview can
+     * never lag behind the message itself and inbox listeners only see the changed entry.
+     * Later calls for the same conversation replace the last message information.
+     */
+    public static void putMessage(Map<String, Object> updates, String conversationId, String messageId,
+                                  String senderId, String receiverId, String messageText,
+                                  String messageType, String timestamp) {
+        Map<String, Object> messageData = new HashMap<>();
+        messageData.put("sender_id", senderId);
+        messageData.put("message_content", messageText);
+        messageData.put("message_type", messageType);
+        messageData.put("timestamp", timestamp);
+        
+        updates.put("messages/" + conversationId + "/" + messageId, messageData);
+        updates.put("conversations/" + conversationId + "/last_message", messageText);
+        updates.put("conversations/" + conversationId + "/last_message_time", timestamp);
+        if (receiverId != null) {
+            updates.put("user_conversations/" + senderId + "/" + conversationId,
+                    ConversationFirebaseService.indexEntry(receiverId, timestamp));
+            updates.put("user_conversations/" + receiverId + "/" + conversationId,
+                    ConversationFirebaseService.indexEntry(senderId, timestamp));
+        }
+    }
+    
+    /**
+     * A message key that sorts like a push key created at the given time, with the rest taken
+     * from a seed. The same time and seed always give the same key, so a message can be written
+     * again without duplicating it, while it still lands in key order at its own time.
+     */
+    public static String messageKeyAt(long timeMillis, String seed) {
+        char[] key = new char[PUSH_KEY_LENGTH];
+        long time = timeMillis;
+        for (int i = PUSH_TIME_LENGTH - 1; i >= 0; i--) {
+            key[i] = PUSH_CHARS.charAt((int) (time % PUSH_CHARS.length()));
+            time /= PUSH_CHARS.length();
+        }
+        // The random part of a push key seed, padded so shorter seeds still give a full key
+        for (int i = PUSH_TIME_LENGTH; i < PUSH_KEY_LENGTH; i++) {
+            int seedIndex = seed.length() - (PUSH_KEY_LENGTH - i);
+            char c = seedIndex >= 0 ? seed.charAt(seedIndex) : '-';
+            key[i] = PUSH_CHARS.indexOf(c) >= 0 ? c : '-';
+        }
+        return new String(key);
+    }
+    
+    /**
+     * The part of a message key after its time. A key made by messageKeyAt from a push key
+     * shares it with that push key, so the two can be recognized as the same message.
+     */
+    public static String keySeed(String messageKey) {
+        return messageKey.length() > PUSH_TIME_LENGTH ? messageKey.substring(PUSH_TIME_LENGTH) : messageKey;
+    }
+    
     public void listenForNewMessages(String conversationId, final ChatRepository.MessageListener listener) {
         // Remove any existing listener first
         removeMessageListener();
         
-        DatabaseReference messagesRef = databaseRef.child("messages").child(conversationId);
+        // Only ask for children after the newest loaded key, so the history that was
+        // already loaded is not downloaded again
+        Query newMessagesQuery = databaseRef.child("messages").child(conversationId).orderByKey();
+        if (newestLoadedKey != null) {
+            newMessagesQuery = newMessagesQuery.startAfter(newestLoadedKey);
+        }
         
         messageListener = new ChildEventListener() {
             @Override
             public void onChildAdded(@NonNull DataSnapshot dataSnapshot, @Nullable String previousChildName) {
-                String messageId = dataSnapshot.getKey();
-                
-                // Skip if this message was already loaded in the initial fetch
-                if (messageId != null && !loadedMessageIds.contains(messageId)) {
-                    String senderId = dataSnapshot.child("sender_id").getValue(String.class);
-                    String messageContent = dataSnapshot.child("message_content").getValue(String.class);
-                    String messageType = dataSnapshot.child("message_type").getValue(String.class);
-                    String timestamp = dataSnapshot.child("timestamp").getValue(String.class);
-                    
-                    if (senderId != null && messageContent != null && 
-                        messageType != null && timestamp != null) {
-                        Message message = new Message(messageId, senderId, messageContent, messageType, timestamp);
-                        loadedMessageIds.add(messageId); // Add to tracked messages
-                        listener.onNewMessage(message);
-                    }
+                Message message = SnapshotMapper.toMessage(dataSnapshot);
+                if (message != null) {
+                    advanceWatermark(message.getMessageId());
+                    listener.onNewMessage(message);
                 }
             }
 
@@ -147,14 +281,15 @@ public class ChatFirebaseService {
             }
         };
         
-        messagesRef.addChildEventListener(messageListener);
+        messageQuery = newMessagesQuery;
+        messageQuery.addChildEventListener(messageListener);
     }
     
     public void removeMessageListener() {
-        if (messageListener != null) {
-            DatabaseReference messagesRef = databaseRef.child("messages");
-            messagesRef.removeEventListener(messageListener);
-            messageListener = null;
+        if (messageListener != null && messageQuery != null) {
+            messageQuery.removeEventListener(messageListener);
         }
+        messageListener = null;
+        messageQuery = null;
     }
 }
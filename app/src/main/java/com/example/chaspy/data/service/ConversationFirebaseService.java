@@ -1,138 +1,387 @@
 package com.example.chaspy.data.service;
 
+import com.example.chaspy.data.manager.DataMigrationManager;
+import com.example.chaspy.data.manager.UserProfileCache;
+import com.example.chaspy.data.mapper.SnapshotMapper;
 import com.example.chaspy.data.model.Conversation;
+import com.example.chaspy.data.model.UserProfile;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
 import com.google.firebase.database.ValueEventListener;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import androidx.annotation.NonNull;
 
 public class ConversationFirebaseService {
+    private final DatabaseReference rootRef;
     private final DatabaseReference conversationsRef;
+    private final DatabaseReference userConversationsRef;
+    private final DatabaseReference conversationAliasesRef;
     private final DatabaseReference usersRef;
 
     public ConversationFirebaseService() {
         FirebaseDatabase database = FirebaseDatabase.getInstance();
+        rootRef = database.getReference();
         conversationsRef = database.getReference("conversations");
+        userConversationsRef = database.getReference("user_conversations");
+        conversationAliasesRef = database.getReference("conversation_aliases");
         usersRef = database.getReference("users");
     }
 
+    /**
+     * Load the user's inbox from user_conversations/{uid}, so the cost grows with the
+     * user's own conversations instead of every conversation in the database.
+     */
     public void getConversations(String userId, FirebaseCallback callback) {
-        conversationsRef.addListenerForSingleValueEvent(new ValueEventListener() {
+        Task<DataSnapshot> indexRead = userConversationsRef.child(userId).get();
+        Task<DataSnapshot> markerRead = backfilledMarker(userId).get();
+
+        Tasks.whenAllSuccess(indexRead, markerRead).addOnSuccessListener(results -> {
+            DataSnapshot indexSnapshot = (DataSnapshot) results.get(0);
+            boolean backfilled = Boolean.TRUE.equals(((DataSnapshot) results.get(1)).getValue(Boolean.class));
+
+            Set<String> conversationIds = new LinkedHashSet<>();
+            for (DataSnapshot entry : indexSnapshot.getChildren()) {
+                conversationIds.add(entry.getKey());
+            }
+            if (backfilled) {
+                loadConversations(userId, new ArrayList<>(conversationIds), callback);
+                return;
+            }
+
+            // The index may only hold entries written since it existed, or by the other user;
+            // add the user's older conversations first
+            backfillUserConversations(userId, new BackfillCallback() {
+                @Override
+                public void onComplete(Map<String, String> friendIdsByConversation) {
+                    conversationIds.addAll(friendIdsByConversation.keySet());
+                    loadConversations(userId, new ArrayList<>(conversationIds), callback);
+                }
+
+                @Override
+                public void onFailure(String error) {
+                    callback.onFailure(error);
+                }
+            });
+        }).addOnFailureListener(e -> callback.onFailure(e.getMessage()));
+    }
+
+    // Set once the user's older conversations have been added to their own index
+    private DatabaseReference backfilledMarker(String userId) {
+        return rootRef.child("user_conversations_meta").child(userId).child("backfilled");
+    }
+
+    // Read each indexed conversation and its friend's details, keeping only non-empty
+    // conversations with users who are still friends
+    private void loadConversations(String userId, List<String> conversationIds, FirebaseCallback callback) {
+        List<Conversation> conversations = new ArrayList<>();
+        if (conversationIds.isEmpty()) {
+            callback.onSuccess(conversations);
+            return;
+        }
+
+        // One read of the friends list instead of one friendship check per conversation
+        FreshRead.once(usersRef.child(userId).child("friends"), new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot friendsSnapshot) {
+                final int[] remaining = {conversationIds.size()};
+
+                for (String conversationId : conversationIds) {
+                    FreshRead.once(conversationsRef.child(conversationId), new ValueEventListener() {
+                        @Override
+                        public void onDataChange(@NonNull DataSnapshot conversationSnapshot) {
+                            Conversation conversation = SnapshotMapper.toConversation(conversationSnapshot, userId);
+
+                            if (conversation == null
+                                    || conversation.getLastMessage() == null
+                                    || conversation.getLastMessage().trim().isEmpty()
+                                    || !Boolean.TRUE.equals(friendsSnapshot.child(conversation.getFriendId()).getValue(Boolean.class))) {
+                                onConversationDone(remaining, conversations, callback);
+                                return;
+                            }
+
+                            // Friend details come from the shared profile cache
+                            UserProfileCache.getInstance().getProfile(conversation.getFriendId(), new UserProfileCache.ProfileCallback() {
+                                @Override
+                                public void onSuccess(UserProfile friend) {
+                                    // Update the conversation with the friend's details
+                                    conversation.setFriendUsername(friend.getFullName());
+                                    conversation.setProfilePicUrl(friend.getProfilePicUrl());
+                                    conversations.add(conversation);
+                                    onConversationDone(remaining, conversations, callback);
+                                }
+
+                                @Override
+                                public void onError(String error) {
+                                    onConversationDone(remaining, conversations, callback);
+                                }
+                            });
+                        }
+
+                        @Override
+                        public void onCancelled(@NonNull DatabaseError error) {
+                            onConversationDone(remaining, conversations, callback);
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                callback.onFailure(error.getMessage());
+            }
+        });
+    }
+
+    private void onConversationDone(int[] remaining, List<Conversation> conversations, FirebaseCallback callback) {
+        remaining[0]--;
+        if (remaining[0] == 0) {
+            callback.onSuccess(conversations);
+        }
+    }
+
+    /**
+     * Build the user's own user_conversations entries for conversations created before the index
+     * existed, and mark the user as backfilled. Uses two indexed queries on user1_id/user2_id
+     * instead of a full scan. Only the caller's index is written: the other participant's index
+     * is built by their own backfill, which their marker tells them to run.
+     */
+    public void backfillUserConversations(String userId, BackfillCallback callback) {
+        Map<String, String> friendIdsByConversation = new HashMap<>();
+        Map<String, Object> indexUpdates = new HashMap<>();
+
+        ValueEventListener collector = new ValueEventListener() {
+            private int pendingQueries = 2;
+            private boolean failed = false;
+
             @Override
             public void onDataChange(@NonNull DataSnapshot snapshot) {
-                List<Conversation> conversations = new ArrayList<>();
-                List<String> pendingConversationIds = new ArrayList<>();
-                
+                if (failed) {
+                    return;
+                }
                 for (DataSnapshot conversationSnapshot : snapshot.getChildren()) {
-                    String user1Id = conversationSnapshot.child("user1_id").getValue(String.class);
-                    String user2Id = conversationSnapshot.child("user2_id").getValue(String.class);
-                    
-                    // Check if this conversation involves the current user
-                    if (userId.equals(user1Id) || userId.equals(user2Id)) {
-                        String conversationId = conversationSnapshot.getKey();
-                        String lastMessage = conversationSnapshot.child("last_message").getValue(String.class);
-                        String lastMessageTime = conversationSnapshot.child("last_message_time").getValue(String.class);
-                        String themeColor = conversationSnapshot.child("theme_color").getValue(String.class);
-                        
-                        // Skip conversations with null or empty last messages
-                        if (lastMessage == null || lastMessage.trim().isEmpty()) {
-                            continue;
+                    Conversation conversation = SnapshotMapper.toConversation(conversationSnapshot, userId);
+                    if (conversation == null || conversation.getFriendId() == null) {
+                        continue;
+                    }
+
+                    String conversationId = conversation.getConversationId();
+                    String friendId = conversation.getFriendId();
+                    String lastMessageTime = conversation.getLastMessageTime();
+                    friendIdsByConversation.put(conversationId, friendId);
+                    indexUpdates.put("user_conversations/" + userId + "/" + conversationId,
+                            indexEntry(friendId, lastMessageTime));
+                }
+
+                pendingQueries--;
+                if (pendingQueries == 0) {
+                    // Written with the entries, so the backfill runs again if they weren't
+                    indexUpdates.put("user_conversations_meta/" + userId + "/backfilled", true);
+                    rootRef.updateChildren(indexUpdates)
+                            .addOnSuccessListener(aVoid -> callback.onComplete(friendIdsByConversation))
+                            .addOnFailureListener(e -> callback.onFailure("Failed to index conversations: " + e.getMessage()));
+                }
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                if (!failed) {
+                    failed = true;
+                    callback.onFailure(error.getMessage());
+                }
+            }
+        };
+
+        FreshRead.once(conversationsRef.orderByChild("user1_id").equalTo(userId), collector);
+        FreshRead.once(conversationsRef.orderByChild("user2_id").equalTo(userId), collector);
+    }
+
+    /**
+     * ID of the conversation between two users, the same whichever of them asks.
+     * Conversations created before these IDs existed are reached through conversation_aliases.
+     */
+    public static String pairConversationId(String userId, String friendId) {
+        return userId.compareTo(friendId) < 0 ? userId + "_" + friendId : friendId + "_" + userId;
+    }
+
+    /**
+     * Find the conversation between two users with one read of conversation_aliases/{pairId}.
+     * The callback gets null if they don't have one yet.
+     */
+    public void findConversationWith(String userId, String friendId, ConversationIdCallback callback) {
+        String pairId = pairConversationId(userId, friendId);
+        FreshRead.once(conversationAliasesRef.child(pairId), new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot snapshot) {
+                String conversationId = snapshot.getValue(String.class);
+                if (conversationId != null) {
+                    callback.onSuccess(conversationId);
+                } else if (DataMigrationManager.hasRun(userId, DataMigrationManager.CONVERSATION_ALIASES)) {
+                    // Every older conversation of this user already has an alias
+                    callback.onSuccess(null);
+                } else {
+                    findLegacyConversation(userId, friendId, pairId, callback);
+                }
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                callback.onFailure(error.getMessage());
+            }
+        });
+    }
+
+    // Until the alias migration has run, older conversations are only in the user's index
+    private void findLegacyConversation(String userId, String friendId, String pairId, ConversationIdCallback callback) {
+        ConversationIdCallback aliasing = new ConversationIdCallback() {
+            @Override
+            public void onSuccess(String conversationId) {
+                if (conversationId != null) {
+                    conversationAliasesRef.child(pairId).setValue(conversationId);
+                }
+                callback.onSuccess(conversationId);
+            }
+
+            @Override
+            public void onFailure(String error) {
+                callback.onFailure(error);
+            }
+        };
+
+        FreshRead.once(userConversationsRef.child(userId).orderByChild("friend_id").equalTo(friendId).limitToFirst(1),
+                new ValueEventListener() {
+                    @Override
+                    public void onDataChange(@NonNull DataSnapshot snapshot) {
+                        for (DataSnapshot entry : snapshot.getChildren()) {
+                            aliasing.onSuccess(entry.getKey());
+                            return;
                         }
-                        
-                        // Determine the friend's ID (the other user in the conversation)
-                        final String friendId = userId.equals(user1Id) ? user2Id : user1Id;
-                        
-                        // Check if they are still friends before adding the conversation
-                        checkFriendshipStatus(userId, friendId, new FriendshipStatusCallback() {
+
+                        // Not indexed, make sure it isn't an older conversation missing from the index
+                        backfillUserConversations(userId, new BackfillCallback() {
                             @Override
-                            public void onResult(boolean areFriends) {
-                                // Only process if they are still friends
-                                if (areFriends) {
-                                    // Create a conversation object with temporary empty values for friend details
-                                    Conversation conversation = new Conversation(
-                                            conversationId,
-                                            lastMessage, 
-                                            lastMessageTime,
-                                            friendId,
-                                            "", // Temporary empty friend username
-                                            "", // Temporary empty profile pic URL
-                                            themeColor // Theme color from Firebase
-                                    );
-                                    
-                                    conversations.add(conversation);
-                                    pendingConversationIds.add(conversationId);
-                                    
-                                    // Fetch the friend's details from the users node
-                                    usersRef.child(friendId).addListenerForSingleValueEvent(new ValueEventListener() {
-                                        @Override
-                                        public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                                            if (dataSnapshot.exists()) {
-                                                String firstName = dataSnapshot.child("firstName").getValue(String.class);
-                                                String lastName = dataSnapshot.child("lastName").getValue(String.class);
-                                                String friendUsername = firstName + " " + lastName;
-                                                String profilePicUrl = dataSnapshot.child("profilePicUrl").getValue(String.class);
-                                                
-                                                // Update the conversation with the friend's details
-                                                conversation.setFriendUsername(friendUsername);
-                                                conversation.setProfilePicUrl(profilePicUrl);
-                                                
-                                                // Remove from pending list
-                                                pendingConversationIds.remove(conversationId);
-                                                
-                                                // If all conversations have been updated, notify callback
-                                                if (pendingConversationIds.isEmpty()) {
-                                                    callback.onSuccess(conversations);
-                                                }
-                                            }
-                                        }
-                                        
-                                        @Override
-                                        public void onCancelled(@NonNull DatabaseError error) {
-                                            callback.onFailure(error.getMessage());
-                                        }
-                                    });
-                                } else {
-                                    // If not friends, check if this was the last pending conversation
-                                    if (pendingConversationIds.isEmpty() && conversations.isEmpty()) {
-                                        callback.onSuccess(conversations);
+                            public void onComplete(Map<String, String> friendIdsByConversation) {
+                                for (Map.Entry<String, String> entry : friendIdsByConversation.entrySet()) {
+                                    if (friendId.equals(entry.getValue())) {
+                                        aliasing.onSuccess(entry.getKey());
+                                        return;
                                     }
                                 }
+                                aliasing.onSuccess(null);
+                            }
+
+                            @Override
+                            public void onFailure(String error) {
+                                aliasing.onFailure(error);
                             }
                         });
                     }
+
+                    @Override
+                    public void onCancelled(@NonNull DatabaseError error) {
+                        aliasing.onFailure(error.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Create the empty conversation between two users under their pair ID.
+     * A transaction makes sure it is only written once when both users create it at the same time.
+     * Whether or not this call wrote it, the alias and both users' index entries are then written
+     * in one update that is the same for either user, so neither caller depends on the other's
+     * follow-up write having gone through.
+     */
+    public void createConversation(String userId, String friendId, ConversationIdCallback callback) {
+        String conversationId = pairConversationId(userId, friendId);
+        String currentTimeMillis = String.valueOf(System.currentTimeMillis());
+
+        conversationsRef.child(conversationId).runTransaction(new Transaction.Handler() {
+            @NonNull
+            @Override
+            public Transaction.Result doTransaction(@NonNull MutableData currentData) {
+                if (currentData.getValue() != null) {
+                    return Transaction.abort();
                 }
-                
-                // If no conversations found
-                if (pendingConversationIds.isEmpty() && conversations.isEmpty()) {
-                    callback.onSuccess(conversations);
-                }
+
+                Map<String, Object> conversationData = new HashMap<>();
+                conversationData.put("user1_id", userId);
+                conversationData.put("user2_id", friendId);
+                conversationData.put("last_message", ""); // No messages yet
+                conversationData.put("last_message_time", currentTimeMillis);
+                currentData.setValue(conversationData);
+                return Transaction.success(currentData);
             }
-            
+
             @Override
-            public void onCancelled(@NonNull DatabaseError error) {
-                callback.onFailure(error.getMessage());
+            public void onComplete(DatabaseError error, boolean committed, DataSnapshot currentData) {
+                if (error != null) {
+                    callback.onFailure("Failed to create conversation: " + error.getMessage());
+                    return;
+                }
+
+                // Not committed means the other user or an accepted request created it first;
+                // the lookup that led here found no alias, so either way it may still be missing.
+                // Only friend_id is written to the index, so an entry that already has a
+                // last_message_time keeps it.
+                Map<String, Object> updates = new HashMap<>();
+                updates.put("conversation_aliases/" + conversationId, conversationId);
+                updates.put("user_conversations/" + userId + "/" + conversationId + "/friend_id", friendId);
+                updates.put("user_conversations/" + friendId + "/" + conversationId + "/friend_id", userId);
+
+                rootRef.updateChildren(updates)
+                        .addOnSuccessListener(aVoid -> callback.onSuccess(conversationId))
+                        .addOnFailureListener(e -> callback.onFailure("Failed to create conversation: " + e.getMessage()));
             }
         });
     }
+
+    /**
+     * Add the paths of an empty conversation between two users, and both users' index entries,
+     * to a multi-path update. Only participant fields are written, so applying it to a
+     * conversation that already has messages changes nothing.
+     *
+     * @return The pair ID of the conversation
+     */
+    public static String putConversationStub(Map<String, Object> updates, String userId, String friendId) {
+        String conversationId = pairConversationId(userId, friendId);
+        // Same order whoever writes it, so a second stub is identical to the first
+        boolean userFirst = conversationId.startsWith(userId + "_");
+        updates.put("conversations/" + conversationId + "/user1_id", userFirst ? userId : friendId);
+        updates.put("conversations/" + conversationId + "/user2_id", userFirst ? friendId : userId);
+        updates.put("user_conversations/" + userId + "/" + conversationId + "/friend_id", friendId);
+        updates.put("user_conversations/" + friendId + "/" + conversationId + "/friend_id", userId);
+        return conversationId;
+    }
+
+    /**
+     * Value of a user_conversations/{uid}/{cid} entry
+     */
+    public static Map<String, Object> indexEntry(String friendId, String lastMessageTime) {
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("friend_id", friendId);
+        entry.put("last_message_time", lastMessageTime);
+        return entry;
+    }
     
     public void getSingleConversationWithDetails(String conversationId, String currentUserId, SingleConversationCallback callback) {
-        conversationsRef.child(conversationId).addListenerForSingleValueEvent(new ValueEventListener() {
+        FreshRead.once(conversationsRef.child(conversationId), new ValueEventListener() {
             @Override
             public void onDataChange(@NonNull DataSnapshot conversationSnapshot) {
-                if (conversationSnapshot.exists()) {
-                    String user1Id = conversationSnapshot.child("user1_id").getValue(String.class);
-                    String user2Id = conversationSnapshot.child("user2_id").getValue(String.class);
-                    String lastMessage = conversationSnapshot.child("last_message").getValue(String.class);
-                    String lastMessageTime = conversationSnapshot.child("last_message_time").getValue(String.class);
-                    String themeColor = conversationSnapshot.child("theme_color").getValue(String.class);
+                Conversation conversation = SnapshotMapper.toConversation(conversationSnapshot, currentUserId);
+                if (conversation != null) {
+                    String lastMessage = conversation.getLastMessage();
                     
                     // Skip conversations with null or empty last messages
                     if (lastMessage == null || lastMessage.trim().isEmpty()) {
@@ -140,48 +389,27 @@ public class ConversationFirebaseService {
                         return;
                     }
                     
-                    // Determine friend ID
-                    String friendId = currentUserId.equals(user1Id) ? user2Id : user1Id;
+                    String friendId = conversation.getFriendId();
                     
                     // Check if they are still friends before proceeding
                     checkFriendshipStatus(currentUserId, friendId, new FriendshipStatusCallback() {
                         @Override
                         public void onResult(boolean areFriends) {
                             if (areFriends) {
-                                // Create a conversation object with temporary values
-                                Conversation conversation = new Conversation(
-                                        conversationId,
-                                        lastMessage,
-                                        lastMessageTime,
-                                        friendId,
-                                        "",
-                                        "",
-                                        themeColor // Include theme color
-                                );
-                                
                                 // Get friend details
-                                usersRef.child(friendId).addListenerForSingleValueEvent(new ValueEventListener() {
+                                UserProfileCache.getInstance().getProfile(friendId, new UserProfileCache.ProfileCallback() {
                                     @Override
-                                    public void onDataChange(@NonNull DataSnapshot userSnapshot) {
-                                        if (userSnapshot.exists()) {
-                                            String firstName = userSnapshot.child("firstName").getValue(String.class);
-                                            String lastName = userSnapshot.child("lastName").getValue(String.class);
-                                            String friendUsername = firstName + " " + lastName;
-                                            String profilePicUrl = userSnapshot.child("profilePicUrl").getValue(String.class);
-                                            
-                                            // Update the conversation with friend details
-                                            conversation.setFriendUsername(friendUsername);
-                                            conversation.setProfilePicUrl(profilePicUrl);
-                                            
-                                            callback.onSuccess(conversation);
-                                        } else {
-                                            callback.onFailure("User not found");
-                                        }
+                                    public void onSuccess(UserProfile friend) {
+                                        // Update the conversation with friend details
+                                        conversation.setFriendUsername(friend.getFullName());
+                                        conversation.setProfilePicUrl(friend.getProfilePicUrl());
+                                        
+                                        callback.onSuccess(conversation);
                                     }
                                     
                                     @Override
-                                    public void onCancelled(@NonNull DatabaseError error) {
-                                        callback.onFailure(error.getMessage());
+                                    public void onError(String error) {
+                                        callback.onFailure(error);
                                     }
                                 });
                             } else {
@@ -203,7 +431,7 @@ public class ConversationFirebaseService {
     
     // Helper method to check if two users are friends
     private void checkFriendshipStatus(String userId, String friendId, FriendshipStatusCallback callback) {
-        usersRef.child(userId).child("friends").child(friendId).addListenerForSingleValueEvent(new ValueEventListener() {
+        FreshRead.once(usersRef.child(userId).child("friends").child(friendId), new ValueEventListener() {
             @Override
             public void onDataChange(@NonNull DataSnapshot snapshot) {
                 System.out.println(userId);
@@ -221,19 +449,6 @@ public class ConversationFirebaseService {
         });
     }
     
-    public void updateConversation(String conversationId, String lastMessage, String timestamp) {
-        // Skip updating if the message is empty
-        if (lastMessage == null || lastMessage.trim().isEmpty()) {
-            return;
-        }
-        
-        Map<String, Object> updates = new HashMap<>();
-        updates.put("last_message", lastMessage);
-        updates.put("last_message_time", timestamp);
-        
-        conversationsRef.child(conversationId).updateChildren(updates);
-    }
-
     public interface FirebaseCallback {
         void onSuccess(List<Conversation> conversations);
         void onFailure(String error);
@@ -247,5 +462,15 @@ public class ConversationFirebaseService {
     public interface FriendshipStatusCallback {
         void onResult(boolean areFriends);
     }
+    
+    public interface ConversationIdCallback {
+        void onSuccess(String conversationId);
+        void onFailure(String error);
+    }
+    
+    public interface BackfillCallback {
+        void onComplete(Map<String, String> friendIdsByConversation);
+        void onFailure(String error);
+    }
 }
 
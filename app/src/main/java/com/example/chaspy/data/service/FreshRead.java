@@ -0,0 +1,23 @@
+package com.example.chaspy.data.service;
+
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+/**
+ * One-shot reads that ask the server first.
+ *
+ * With disk persistence on, addListenerForSingleValueEvent answers from the local cache whenever
+ * the path is cached, even if it isn't kept synced and is out of date. get() only falls back to
+ * the cache when the server can't be reached. Callbacks run on the main thread, as before.
+ */
+public final class FreshRead {
+    private FreshRead() {
+    }
+
+    public static void once(Query query, ValueEventListener listener) {
+        query.get()
+                .addOnSuccessListener(listener::onDataChange)
+                .addOnFailureListener(e -> listener.onCancelled(DatabaseError.fromException(e)));
+    }
+}
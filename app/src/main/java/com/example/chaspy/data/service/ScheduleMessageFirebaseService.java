@@ -2,6 +2,7 @@ package com.example.chaspy.data.service;
 
 import androidx.annotation.NonNull;
 
+import com.example.chaspy.data.mapper.SnapshotMapper;
 import com.example.chaspy.data.model.ScheduleMessage;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.firebase.database.DataSnapshot;
@@ -38,37 +39,21 @@ public class ScheduleMessageFirebaseService {
     }
 
     /**
-     * Get all scheduled messages for a specific user
+     * Get all scheduled messages for a specific user, with the same indexed query
+     * ScheduledMessageManager listens to, so only the user's own entries are downloaded
      */
     public void getScheduledMessages(String userId, ScheduleCallback<List<ScheduleMessage>> callback) {
-        scheduleMessagesRef.addListenerForSingleValueEvent(new ValueEventListener() {
+        FreshRead.once(scheduleMessagesRef.orderByChild("sender_id").equalTo(userId), new ValueEventListener() {
             @Override
             public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
                 List<ScheduleMessage> messages = new ArrayList<>();
 
                 for (DataSnapshot messageSnapshot : dataSnapshot.getChildren()) {
-                    String messageId = messageSnapshot.getKey();
-                    String senderId = messageSnapshot.child("sender_id").getValue(String.class);
-
-                    // Only add messages where the user is the sender
-                    if (senderId != null && senderId.equals(userId)) {
-                        String receiverId = messageSnapshot.child("receiver_id").getValue(String.class);
-                        String content = messageSnapshot.child("message_content").getValue(String.class);
-                        String timeStr = messageSnapshot.child("sending_time").getValue(String.class);
-                        String conversationId = messageSnapshot.child("conversation_id").getValue(String.class);
-
-                        if (receiverId != null && content != null && timeStr != null) {
-                            try {
-                                // Parse string timestamp to long
-                                long time = Long.parseLong(timeStr);
-                                ScheduleMessage scheduleMessage = new ScheduleMessage(
-                                        messageId, senderId, receiverId, content, time, conversationId);
-                                messages.add(scheduleMessage);
-                            } catch (NumberFormatException e) {
-                                // Skip invalid timestamp entries
-                                continue;
-                            }
-                        }
+                    // Skips entries with missing fields or an invalid timestamp
+                    ScheduleMessage scheduleMessage = SnapshotMapper.toScheduleMessage(messageSnapshot);
+
+                    if (scheduleMessage != null) {
+                        messages.add(scheduleMessage);
                     }
                 }
 
@@ -103,7 +88,7 @@ public class ScheduleMessageFirebaseService {
         Query pendingMessagesQuery = scheduleMessagesRef.orderByChild("sending_time")
                                                         .endAt(currentTimeStr);
                                                         
-        pendingMessagesQuery.addListenerForSingleValueEvent(new ValueEventListener() {
+        FreshRead.once(pendingMessagesQuery, new ValueEventListener() {
             @Override
             public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
                 List<ScheduleMessage> pendingMessages = new ArrayList<>();
@@ -113,30 +98,16 @@ public class ScheduleMessageFirebaseService {
 
                 for (DataSnapshot messageSnapshot : dataSnapshot.getChildren()) {
                     totalMessages++;
-                    String messageId = messageSnapshot.getKey();
-                    String senderId = messageSnapshot.child("sender_id").getValue(String.class);
-                    String receiverId = messageSnapshot.child("receiver_id").getValue(String.class);
-                    String content = messageSnapshot.child("message_content").getValue(String.class);
-                    String timeStr = messageSnapshot.child("sending_time").getValue(String.class);
-                    String conversationId = messageSnapshot.child("conversation_id").getValue(String.class);
+                    ScheduleMessage message = SnapshotMapper.toScheduleMessage(messageSnapshot);
                     
-                    if (messageId == null || senderId == null || receiverId == null || content == null || timeStr == null) {
+                    if (message == null) {
                         invalidMessages++;
                         continue;
                     }
                     
-                    try {
-                        // Parse string timestamp to long
-                        long scheduledTime = Long.parseLong(timeStr);
-                        
-                        // Add the message to the list of pending messages
-                        ScheduleMessage message = new ScheduleMessage(
-                                messageId, senderId, receiverId, content, scheduledTime, conversationId);
-                        pendingMessages.add(message);
-                        validMessages++;
-                    } catch (NumberFormatException e) {
-                        invalidMessages++;
-                    }
+                    // Add the message to the list of pending messages
+                    pendingMessages.add(message);
+                    validMessages++;
                 }
 
                 Log.d(TAG, String.format("[PERFORMANCE] Query returned %d total messages, %d valid pending, %d invalid", 
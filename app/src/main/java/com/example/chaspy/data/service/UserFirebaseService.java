@@ -4,6 +4,7 @@ import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.auth.AuthResult;
 import com.google.android.gms.tasks.Task;
+import com.example.chaspy.data.mapper.SnapshotMapper;
 import com.example.chaspy.data.model.User;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
@@ -17,6 +18,8 @@ import java.util.Map;
 
 public class UserFirebaseService {
 
+    public static final String PUBLIC_PROFILES_NODE = "public_profiles";
+
     private static FirebaseAuth firebaseAuth;
     private static DatabaseReference usersRef;
     private static String defaultAvatarUrl = ""; // Cache the default avatar URL
@@ -74,6 +77,22 @@ public class UserFirebaseService {
             });
     }
 
+    /**
+     * Add the write of a user's public profile, what other users see of them, for a multi-path
+     * update from the root. It sits next to the user so a profile can be watched without
+     * downloading friend and block lists.
+     */
+    public static void putPublicProfile(Map<String, Object> updates, String uid, String firstName,
+                                        String lastName, String email, String profilePicUrl, boolean isActive) {
+        Map<String, Object> profile = new HashMap<>();
+        profile.put("firstName", firstName);
+        profile.put("lastName", lastName);
+        profile.put("email", email);
+        profile.put("profilePicUrl", profilePicUrl);
+        profile.put("isActive", isActive);
+        updates.put(PUBLIC_PROFILES_NODE + "/" + uid, profile);
+    }
+
     // Save additional user data in Firestore
     public Task<Void> saveUserData(FirebaseUser firebaseUser, String firstName, String lastName) {
         // Get default avatar URL asynchronously
@@ -82,9 +101,14 @@ public class UserFirebaseService {
                 String avatarUrl = task.getResult();
                 User user = new User(firebaseUser.getEmail(), firstName, lastName, avatarUrl, false);
                 System.out.println(user);
-                return usersRef
-                        .child(firebaseUser.getUid())
-                        .setValue(user);
+                
+                // The user and their search index entries are written together
+                Map<String, Object> updates = new HashMap<>();
+                updates.put("users/" + firebaseUser.getUid(), user);
+                UserSearchService.putIndexEntries(updates, firebaseUser.getUid(), firstName, lastName, avatarUrl);
+                putPublicProfile(updates, firebaseUser.getUid(), firstName, lastName, firebaseUser.getEmail(),
+                        avatarUrl, false);
+                return usersRef.getRoot().updateChildren(updates);
             } else {
                 throw task.getException();
             }
@@ -99,13 +123,27 @@ public class UserFirebaseService {
      * @return Task result of the update operation
      */
     public Task<Void> updateUserProfile(String userId, String firstName, String lastName) {
-        // Create a map of the fields to update
-        Map<String, Object> updates = new HashMap<>();
-        updates.put("firstName", firstName);
-        updates.put("lastName", lastName);
-        
-        // Update all fields simultaneously
-        return usersRef.child(userId).updateChildren(updates);
+        // The old name is needed to move the user's search index entries
+        return usersRef.child(userId).get().continueWithTask(readTask -> {
+            if (!readTask.isSuccessful()) {
+                throw readTask.getException();
+            }
+            User current = SnapshotMapper.toUser(readTask.getResult());
+            
+            // Update the name and the search index simultaneously
+            Map<String, Object> updates = new HashMap<>();
+            updates.put("users/" + userId + "/firstName", firstName);
+            updates.put("users/" + userId + "/lastName", lastName);
+            updates.put(PUBLIC_PROFILES_NODE + "/" + userId + "/firstName", firstName);
+            updates.put(PUBLIC_PROFILES_NODE + "/" + userId + "/lastName", lastName);
+            String profilePicUrl = null;
+            if (current != null) {
+                UserSearchService.putIndexRemovals(updates, userId, current.getFirstName(), current.getLastName());
+                profilePicUrl = current.getProfilePicUrl();
+            }
+            UserSearchService.putIndexEntries(updates, userId, firstName, lastName, profilePicUrl);
+            return usersRef.getRoot().updateChildren(updates);
+        });
     }
 
     /**
@@ -147,7 +185,7 @@ public class UserFirebaseService {
     // Fetch and cache the default avatar URL
     private void fetchDefaultAvatarUrl() {
         DatabaseReference defaultAvatarRef = FirebaseDatabase.getInstance().getReference("general_information").child("default_avatar");
-        defaultAvatarRef.addListenerForSingleValueEvent(new ValueEventListener() {
+        FreshRead.once(defaultAvatarRef, new ValueEventListener() {
             @Override
             public void onDataChange(DataSnapshot dataSnapshot) {
                 if (dataSnapshot.exists()) {
@@ -174,7 +212,7 @@ public class UserFirebaseService {
         
         // Otherwise, fetch it from the database
         DatabaseReference defaultAvatarRef = FirebaseDatabase.getInstance().getReference("general_information").child("default_avatar");
-        defaultAvatarRef.addListenerForSingleValueEvent(new ValueEventListener() {
+        FreshRead.once(defaultAvatarRef, new ValueEventListener() {
             @Override
             public void onDataChange(DataSnapshot dataSnapshot) {
                 if (dataSnapshot.exists()) {
@@ -202,12 +240,22 @@ public class UserFirebaseService {
      * @return Task representing the result of the update operation
      */
     public Task<Void> updateProfilePicture(String userId, String newProfilePicUrl) {
-        // Create a map with just the field to update
-        Map<String, Object> updates = new HashMap<>();
-        updates.put("profilePicUrl", newProfilePicUrl);
-        
-        // Update the field
-        return usersRef.child(userId).updateChildren(updates);
+        // Search results show the avatar too, so the index entries are updated with it
+        return usersRef.child(userId).get().continueWithTask(readTask -> {
+            if (!readTask.isSuccessful()) {
+                throw readTask.getException();
+            }
+            User current = SnapshotMapper.toUser(readTask.getResult());
+            
+            Map<String, Object> updates = new HashMap<>();
+            updates.put("users/" + userId + "/profilePicUrl", newProfilePicUrl);
+            updates.put(PUBLIC_PROFILES_NODE + "/" + userId + "/profilePicUrl", newProfilePicUrl);
+            if (current != null) {
+                UserSearchService.putIndexEntries(updates, userId, current.getFirstName(), current.getLastName(),
+                        newProfilePicUrl);
+            }
+            return usersRef.getRoot().updateChildren(updates);
+        });
     }
 
     /**
@@ -0,0 +1,185 @@
+package com.example.chaspy.data.service;
+
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+
+import com.example.chaspy.data.mapper.SnapshotMapper;
+import com.example.chaspy.data.model.User;
+import com.example.chaspy.data.search.TextNormalizer;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds users by name through the user_search index instead of downloading every user.
+ *
+ * user_search/{name}|{uid} holds what a search result shows (first name, last name, avatar).
+ * {name} is the normalized full name and every word-suffix of it ("nguyen van an", "van an",
+ * "an"), so a query matches the start of any word, and a query reads only the entries whose
+ * key starts with it. There is one flat child per user and name, so the query's limit counts
+ * users, however many people share a common name.
+ *
+ * Must be used from the main thread.
+ */
+public class UserSearchService {
+    public static final String SEARCH_NODE = "user_search";
+    // Between the name and the uid in an entry's key; stripped from names so it is unambiguous
+    public static final String KEY_SEPARATOR = "|";
+    private static final int RECENT_QUERIES = 20;
+
+    private final DatabaseReference searchRef;
+    private final LruCache<String, List<User>> recentResults = new LruCache<>(RECENT_QUERIES);
+
+    // A get() can't be cancelled, so the result of any other read is ignored instead
+    private ValueEventListener inFlightListener;
+
+    public UserSearchService() {
+        searchRef = FirebaseDatabase.getInstance().getReference(SEARCH_NODE);
+    }
+
+    /**
+     * Find up to limit users whose name has a word starting with the query.
+     * Starting a new search cancels the one still in flight.
+     */
+    public void searchUsers(String query, int limit, SearchCallback callback) {
+        cancel();
+
+        String prefix = toKey(TextNormalizer.normalize(query));
+        if (prefix.isEmpty()) {
+            callback.onSuccess(new ArrayList<>());
+            return;
+        }
+
+        String cacheKey = prefix + "#" + limit;
+        List<User> cached = recentResults.get(cacheKey);
+        if (cached != null) {
+            callback.onSuccess(new ArrayList<>(cached));
+            return;
+        }
+
+        Query searchQuery = searchRef.orderByKey()
+                .startAt(prefix)
+                .endAt(prefix + "\uf8ff")
+                .limitToFirst(limit);
+        ValueEventListener listener = new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot snapshot) {
+                if (inFlightListener != this) {
+                    return;
+                }
+                inFlightListener = null;
+
+                // Several name keys can point at the same user
+                Map<String, User> users = new LinkedHashMap<>();
+                for (DataSnapshot entrySnapshot : snapshot.getChildren()) {
+                    User user = SnapshotMapper.toSearchResult(entrySnapshot);
+                    if (user != null && !users.containsKey(user.getUid())) {
+                        users.put(user.getUid(), user);
+                    }
+                }
+
+                List<User> results = new ArrayList<>(users.values());
+                recentResults.put(cacheKey, results);
+                callback.onSuccess(new ArrayList<>(results));
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                if (inFlightListener != this) {
+                    return;
+                }
+                inFlightListener = null;
+                callback.onFailure(error.getMessage());
+            }
+        };
+
+        inFlightListener = listener;
+        // From the server, so a name change made since the index was cached shows up
+        FreshRead.once(searchQuery, listener);
+    }
+
+    /**
+     * Drop the search in flight, if any; its callback won't be called.
+     */
+    public void cancel() {
+        inFlightListener = null;
+    }
+
+    /**
+     * Add the writes that index a user under their name, for a multi-path update from the root.
+     */
+    public static void putIndexEntries(Map<String, Object> updates, String uid, String firstName,
+                                       String lastName, String profilePicUrl) {
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("firstName", firstName);
+        entry.put("lastName", lastName);
+        entry.put("profilePicUrl", profilePicUrl);
+
+        for (String key : indexKeys(firstName, lastName)) {
+            updates.put(SEARCH_NODE + "/" + key + KEY_SEPARATOR + uid, entry);
+        }
+    }
+
+    /**
+     * Add the deletes that remove a user from the index under their previous name.
+     */
+    public static void putIndexRemovals(Map<String, Object> updates, String uid, String firstName,
+                                        String lastName) {
+        for (String key : indexKeys(firstName, lastName)) {
+            updates.put(SEARCH_NODE + "/" + key + KEY_SEPARATOR + uid, null);
+        }
+    }
+
+    /**
+     * Add the deletes that remove a user's entries in the earlier user_search/{name}/{uid} layout.
+     */
+    public static void putNestedIndexRemovals(Map<String, Object> updates, String uid, String firstName,
+                                              String lastName) {
+        for (String key : indexKeys(firstName, lastName)) {
+            updates.put(SEARCH_NODE + "/" + key + "/" + uid, null);
+        }
+    }
+
+    private static Set<String> indexKeys(String firstName, String lastName) {
+        String fullName = (firstName != null ? firstName : "") + " " + (lastName != null ? lastName : "");
+        String[] words = TextNormalizer.tokenize(TextNormalizer.normalize(fullName));
+
+        Set<String> keys = new LinkedHashSet<>();
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder suffix = new StringBuilder();
+            for (int j = i; j < words.length; j++) {
+                if (j > i) {
+                    suffix.append(' ');
+                }
+                suffix.append(words[j]);
+            }
+            String key = toKey(suffix.toString());
+            if (!key.isEmpty()) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    // Database keys can't contain . # $ [ ] or /, and | separates the name from the uid
+    private static String toKey(String normalized) {
+        return normalized.replaceAll("[.#$\\[\\]/|]", "").trim();
+    }
+
+    public interface SearchCallback {
+        void onSuccess(List<User> users);
+        void onFailure(String error);
+    }
+}
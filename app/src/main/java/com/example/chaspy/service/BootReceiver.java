@@ -15,7 +15,7 @@ public class BootReceiver extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
             Log.d(TAG, "Boot completed, starting scheduled message service");
-            ScheduledMessageManager.startScheduledMessageWorker(context);
+            ScheduledMessageManager.start(context);
         }
     }
 }
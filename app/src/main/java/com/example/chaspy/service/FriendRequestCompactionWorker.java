@@ -0,0 +1,71 @@
+package com.example.chaspy.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.example.chaspy.data.repository.FriendRequestRepository;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes answered friend requests of the signed-in user once a day, so friend_requests
+ * only grows with pending requests. Answering a request already deletes it; this cleans up
+ * what other app versions or failed writes left behind.
+ */
+public class FriendRequestCompactionWorker extends Worker {
+    private static final String TAG = "FriendRequestCompaction";
+    private static final String WORK_NAME = "friend_request_compaction";
+    private static final int COMPACTION_TIMEOUT_SECONDS = 30;
+
+    public FriendRequestCompactionWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Schedule the daily compaction. Does nothing if it is already scheduled.
+     */
+    public static void schedule(Context context) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.UNMETERED)
+                .setRequiresBatteryNotLow(true)
+                .build();
+
+        PeriodicWorkRequest workRequest = new PeriodicWorkRequest.Builder(
+                FriendRequestCompactionWorker.class, 1, TimeUnit.DAYS)
+                .setConstraints(constraints)
+                .build();
+
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(
+                WORK_NAME, ExistingPeriodicWorkPolicy.KEEP, workRequest);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        if (user == null) {
+            return Result.success();
+        }
+
+        try {
+            Tasks.await(FriendRequestRepository.compactResolvedRequests(user.getUid()),
+                    COMPACTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return Result.success();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to compact friend requests: " + e.getMessage(), e);
+            return Result.retry();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.chaspy.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.example.chaspy.data.local.LocalMessageStore;
+import com.example.chaspy.data.model.Message;
+import com.example.chaspy.data.service.ChatFirebaseService;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Re-sends the signed-in user's messages left in the local outbox, e.g. after a failed send
+ * or process death. Messages the server rejects for good are dropped instead of retried.
+ *
+ * A message is delivered under a key made when its delivery starts, not the one made when it
+ * was written: receivers only read keys after the newest one they have, so an old key arriving
+ * late would never be seen. The delivery key is stored on the outbox entry before the first
+ * attempt, so later attempts write the same key and stay idempotent.
+ */
+public class OutboxWorker extends Worker {
+    private static final String TAG = "OutboxWorker";
+    private static final String WORK_NAME = "message_outbox_worker";
+    private static final int SEND_TIMEOUT_SECONDS = 15;
+    private static final int READ_TIMEOUT_SECONDS = 10;
+
+    public OutboxWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Schedule a flush of the outbox for when the device is online.
+     * Does nothing if one is already waiting.
+     */
+    public static void enqueue(Context context) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build();
+
+        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(OutboxWorker.class)
+                .setConstraints(constraints)
+                .setInitialDelay(10, TimeUnit.SECONDS) // Give the direct send a chance to be acknowledged
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 10, TimeUnit.SECONDS)
+                .build();
+
+        WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME, ExistingWorkPolicy.KEEP, workRequest);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        if (user == null) {
+            // Queued messages wait for their sender to sign in again
+            return Result.success();
+        }
+
+        LocalMessageStore localStore = LocalMessageStore.getInstance(getApplicationContext());
+        List<LocalMessageStore.OutboxEntry> entries = localStore.getOutbox(user.getUid());
+        if (entries.isEmpty()) {
+            return Result.success();
+        }
+
+        Log.d(TAG, "Sending " + entries.size() + " queued messages");
+        ChatFirebaseService chatService = new ChatFirebaseService();
+        boolean allSent = true;
+
+        for (LocalMessageStore.OutboxEntry entry : entries) {
+            Message message;
+            try {
+                message = claimDeliveryKey(chatService, localStore, entry);
+            } catch (ExecutionException | TimeoutException e) {
+                Log.e(TAG, "Could not check queued message " + entry.getMessage().getMessageId() + ": " + e.getMessage());
+                allSent = false;
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Result.retry();
+            }
+            if (message == null) {
+                continue;
+            }
+
+            switch (sendBlocking(chatService, entry, message)) {
+                case SENT:
+                    localStore.markDelivered(entry.getConversationId(), message);
+                    break;
+                case REJECTED:
+                    // Retrying can't change the answer, and would keep the whole outbox retrying
+                    localStore.removeFromOutbox(message.getMessageId());
+                    break;
+                default:
+                    allSent = false;
+                    break;
+            }
+        }
+
+        return allSent ? Result.success() : Result.retry();
+    }
+
+    /**
+     * The message to deliver for an outbox entry: under its stored delivery key, or under a new
+     * one at the current time that is stored on the entry first.
+     * The write made when the message was sent may have landed after all, e.g. replayed by
+     * Firebase after a restart. Such a message is marked delivered instead of sent again.
+     *
+     * @return null if there is nothing left to send
+     */
+    private Message claimDeliveryKey(ChatFirebaseService chatService, LocalMessageStore localStore,
+                                     LocalMessageStore.OutboxEntry entry)
+            throws ExecutionException, InterruptedException, TimeoutException {
+        Message written = entry.getMessage();
+        if (entry.getDeliveryKey() != null) {
+            return new Message(entry.getDeliveryKey(), written.getSenderId(), written.getMessageContent(),
+                    written.getMessageType(), written.getTimestamp(), true);
+        }
+
+        DataSnapshot landed = Tasks.await(chatService.readMessage(entry.getConversationId(), written.getMessageId()),
+                READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (landed.exists()) {
+            localStore.markDelivered(entry.getConversationId(), written);
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        String deliveryKey = ChatFirebaseService.messageKeyAt(now, written.getMessageId());
+        if (!localStore.setDeliveryKey(written.getMessageId(), deliveryKey, now)) {
+            // Acknowledged by the direct send in the meantime
+            return null;
+        }
+        return new Message(deliveryKey, written.getSenderId(), written.getMessageContent(),
+                written.getMessageType(), now, true);
+    }
+
+    private SendResult sendBlocking(ChatFirebaseService chatService, LocalMessageStore.OutboxEntry entry,
+                                    Message message) {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<SendResult> result = new AtomicReference<>(SendResult.FAILED);
+
+        chatService.writeMessage(entry.getConversationId(), message.getMessageId(), message.getSenderId(),
+                entry.getReceiverId(), message.getMessageContent(), message.getMessageType().getValue(),
+                String.valueOf(message.getTimestamp()),
+                (error, ref) -> {
+                    if (error == null) {
+                        result.set(SendResult.SENT);
+                    } else {
+                        Log.e(TAG, "Failed to send queued message " + message.getMessageId() + ": " + error.getMessage());
+                        if (error.getCode() == DatabaseError.PERMISSION_DENIED) {
+                            result.set(SendResult.REJECTED);
+                        }
+                    }
+                    latch.countDown();
+                });
+
+        try {
+            latch.await(SEND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return SendResult.FAILED;
+        }
+    }
+
+    private enum SendResult {
+        SENT,
+        // The server refused the write for good, e.g. the sender is no longer allowed to write there
+        REJECTED,
+        // Timed out or failed in a way a later attempt may not
+        FAILED
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.chaspy.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Receives the alarm ScheduledMessageManager arms for the next scheduled message.
+ */
+public class ScheduledMessageAlarmReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        ScheduledMessageManager.onAlarm(context);
+    }
+}
@@ -1,193 +1,217 @@
 package com.example.chaspy.service;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
 import android.util.Log;
 
-import androidx.work.Constraints;
-import androidx.work.ExistingPeriodicWorkPolicy;
-import androidx.work.NetworkType;
-import androidx.work.PeriodicWorkRequest;
-import androidx.work.WorkManager;
-import androidx.work.WorkRequest;
-import androidx.work.BackoffPolicy;
-import androidx.work.OutOfQuotaPolicy;
-import androidx.work.OneTimeWorkRequest;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.work.ExistingWorkPolicy;
-import androidx.work.Data;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.OutOfQuotaPolicy;
+import androidx.work.WorkManager;
 
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
-import android.os.Handler;
-import android.os.Looper;
+import com.example.chaspy.data.mapper.SnapshotMapper;
+import com.example.chaspy.data.model.ScheduleMessage;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
 
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Sends scheduled messages when they are due, without polling.
+ *
+ * The signed-in user's scheduled messages are kept in a priority queue by sending time, fed by a
+ * child listener on schedule_messages. One exact alarm is armed for the earliest of them and
+ * re-armed whenever the head of the queue changes. When it goes off, ScheduledMessageWorker sends
+ * whatever is due, and the deleted entries leave the queue through the listener.
+ *
+ * All state is touched on the main thread only, where Firebase delivers its callbacks.
+ */
 public class ScheduledMessageManager {
     private static final String TAG = "ScheduledMessageManager";
-    private static final String WORK_NAME = "scheduled_message_worker";
-    
-    // OPTIMIZATION: Increase check interval to reduce CPU usage
-    // Checking every 3 seconds instead of every second - this is still more than good enough
-    // for most messaging applications while reducing system load
-    private static final long CHECK_INTERVAL_MS = 3000; // 3 second interval
-    
-    // Handler for second-level checks
-    private static Handler secondLevelHandler;
-    private static Runnable secondLevelRunnable;
-    private static boolean isRunning = false;
-    
-    // This minimum interval is still used for WorkManager as a backup mechanism
-    private static final long REPEAT_INTERVAL = 15;
-    private static final TimeUnit REPEAT_INTERVAL_UNIT = TimeUnit.MINUTES;
-    
-    // Executor for background tasks
-    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
-    
-    public static void startScheduledMessageWorker(Context context) {
-        try {
-            Log.d(TAG, "Setting up scheduled message worker with " + (CHECK_INTERVAL_MS/1000) + "-second interval");
-            
-            // Run potentially blocking setup operations in background
-            executor.execute(() -> {
-                try {
-                    // Set up WorkManager (as backup/redundancy)
-                    Constraints constraints = new Constraints.Builder()
-                            .setRequiredNetworkType(NetworkType.CONNECTED)
-                            .build();
-                    
-                    // OPTIMIZATION: Use exponential backoff for the periodic work to avoid
-                    // excessive resource consumption when errors occur
-                    PeriodicWorkRequest workRequest = new PeriodicWorkRequest.Builder(
-                            ScheduledMessageWorker.class,
-                            REPEAT_INTERVAL, REPEAT_INTERVAL_UNIT)
-                            .setConstraints(constraints)
-                            .setInitialDelay(5, TimeUnit.SECONDS)
-                            .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 30, TimeUnit.SECONDS)
-                            .build();
-                    
-                    // This is safe to call from a background thread
-                    WorkManager.getInstance(context).enqueueUniquePeriodicWork(
-                            WORK_NAME,
-                            ExistingPeriodicWorkPolicy.UPDATE,
-                            workRequest);
-                    
-                    Log.d(TAG, "Scheduled message worker has been set up with " + (CHECK_INTERVAL_MS/1000) + "-second interval");
-                } catch (Exception e) {
-                    Log.e(TAG, "Error in background setup of WorkManager: " + e.getMessage(), e);
-                }
-            });
-            
-            // Start second-level precision handler (on main thread but without blocking)
-            startSecondLevelChecks(context);
-            
-            // Also schedule an immediate check
-            checkScheduledMessagesNow(context);
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to start scheduled message worker: " + e.getMessage(), e);
+    // Polling job used by older versions, cancelled on start
+    private static final String LEGACY_WORK_NAME = "scheduled_message_worker";
+    private static final String WORK_NAME = "scheduled_message_delivery";
+    // If a due message is still queued when its alarm fires, delivery failed; try again after this
+    private static final long RETRY_DELAY_MS = 30_000;
+
+    private static final PriorityQueue<ScheduleMessage> deadlines = new PriorityQueue<>(
+            Comparator.comparingLong(ScheduleMessage::getSendingTime).thenComparing(ScheduleMessage::getId));
+    private static final Map<String, ScheduleMessage> deadlinesById = new HashMap<>();
+
+    private static Context appContext;
+    private static FirebaseAuth.AuthStateListener authListener;
+    private static Query scheduledQuery;
+    private static String listeningUserId;
+    private static long armedTime = 0;
+
+    private static final ChildEventListener scheduleListener = new ChildEventListener() {
+        @Override
+        public void onChildAdded(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+            put(SnapshotMapper.toScheduleMessage(snapshot));
         }
-    }
-    
-    private static void startSecondLevelChecks(final Context context) {
-        // Prevent multiple handlers from running
-        if (isRunning) {
-            Log.d(TAG, "Second-level checker already running");
+
+        @Override
+        public void onChildChanged(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+            remove(snapshot.getKey());
+            put(SnapshotMapper.toScheduleMessage(snapshot));
+        }
+
+        @Override
+        public void onChildRemoved(@NonNull DataSnapshot snapshot) {
+            remove(snapshot.getKey());
+        }
+
+        @Override
+        public void onChildMoved(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+        }
+
+        @Override
+        public void onCancelled(@NonNull DatabaseError error) {
+            Log.e(TAG, "Scheduled messages listener cancelled: " + error.getMessage());
+        }
+    };
+
+    /**
+     * Start following the signed-in user's scheduled messages. Safe to call more than once.
+     */
+    public static void start(Context context) {
+        if (authListener != null) {
             return;
         }
-        
-        Log.d(TAG, "Starting precision checks every " + (CHECK_INTERVAL_MS/1000) + " seconds");
-        
-        // Create handler on main thread
-        if (secondLevelHandler == null) {
-            secondLevelHandler = new Handler(Looper.getMainLooper());
-        }
-        
-        // OPTIMIZATION: Track execution time to adjust interval dynamically
-        final long[] lastExecutionTime = {0};
-        
-        // Create runnable that will check messages and reschedule itself
-        secondLevelRunnable = new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    long start = System.currentTimeMillis();
-                    
-                    // OPTIMIZATION: Only schedule work if enough time has passed since the last execution
-                    // This prevents overlapping executions that waste resources
-                    if (lastExecutionTime[0] == 0 || (start - lastExecutionTime[0] >= CHECK_INTERVAL_MS)) {
-                        lastExecutionTime[0] = start;
-                        
-                        // This operation is non-blocking, just queues up work
-                        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(ScheduledMessageWorker.class)
-                                .setExpedited(OutOfQuotaPolicy.RUN_AS_NON_EXPEDITED_WORK_REQUEST)
-                                .build();
-                        WorkManager.getInstance(context).enqueue(workRequest);
-                    }
-                    
-                    // Reschedule this runnable to run again
-                    if (isRunning && secondLevelHandler != null) {
-                        secondLevelHandler.postDelayed(this, CHECK_INTERVAL_MS);
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "Error in periodic check: " + e.getMessage());
-                    // Try to recover by scheduling again
-                    if (isRunning && secondLevelHandler != null) {
-                        secondLevelHandler.postDelayed(this, CHECK_INTERVAL_MS);
-                    }
-                }
-            }
+        appContext = context.getApplicationContext();
+        WorkManager.getInstance(appContext).cancelUniqueWork(LEGACY_WORK_NAME);
+
+        authListener = auth -> {
+            FirebaseUser user = auth.getCurrentUser();
+            listenTo(user != null ? user.getUid() : null);
         };
-        
-        // Start the recurring checks
-        isRunning = true;
-        secondLevelHandler.post(secondLevelRunnable);
-    }
-    
-    public static void stopScheduledMessageWorker(Context context) {
-        try {
-            Log.d(TAG, "Stopping scheduled message worker");
-            
-            // Stop second-level handler (UI thread operation but non-blocking)
-            stopSecondLevelChecks();
-            
-            // Run potentially blocking WorkManager operations in background
-            executor.execute(() -> {
-                // Stop WorkManager tasks
-                WorkManager.getInstance(context).cancelUniqueWork(WORK_NAME);
-                Log.d(TAG, "WorkManager tasks stopped");
-            });
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to stop scheduled message worker: " + e.getMessage(), e);
-        }
+        FirebaseAuth.getInstance().addAuthStateListener(authListener);
+
+        // Anything that came due while the app wasn't running
+        checkScheduledMessagesNow(appContext);
     }
-    
-    private static void stopSecondLevelChecks() {
-        if (secondLevelHandler != null && secondLevelRunnable != null) {
-            Log.d(TAG, "Stopping second-level precision checks");
-            secondLevelHandler.removeCallbacks(secondLevelRunnable);
-            isRunning = false;
+
+    /**
+     * Stop following scheduled messages and cancel the alarm.
+     */
+    public static void shutdown() {
+        if (authListener != null) {
+            FirebaseAuth.getInstance().removeAuthStateListener(authListener);
+            authListener = null;
         }
+        listenTo(null);
     }
-    
-    // Additional method for one-time immediate check with high priority (non-blocking)
+
+    /**
+     * Send whatever is due now.
+     */
     public static void checkScheduledMessagesNow(Context context) {
         try {
-            Log.d(TAG, "Triggering immediate scheduled message check");
-            
-            // Create and enqueue the work request (non-blocking)
-            OneTimeWorkRequest immediateWorkRequest = new OneTimeWorkRequest.Builder(
-                    ScheduledMessageWorker.class)
+            OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(ScheduledMessageWorker.class)
                     .setExpedited(OutOfQuotaPolicy.RUN_AS_NON_EXPEDITED_WORK_REQUEST)
                     .build();
-            
-            // This operation is non-blocking
-            WorkManager.getInstance(context).enqueue(immediateWorkRequest);
+            // Appended so a deadline reached during a running check still gets its own check
+            WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME,
+                    ExistingWorkPolicy.APPEND_OR_REPLACE, workRequest);
         } catch (Exception e) {
-            Log.e(TAG, "Failed to trigger immediate check: " + e.getMessage(), e);
+            Log.e(TAG, "Failed to trigger scheduled message check: " + e.getMessage(), e);
         }
     }
-    
-    // Make sure to clean up executor when app is destroyed
-    public static void shutdown() {
-        executor.shutdown();
+
+    // Called by ScheduledMessageAlarmReceiver when the armed deadline is reached
+    static void onAlarm(Context context) {
+        Log.d(TAG, "Scheduled message deadline reached");
+        armedTime = 0;
+        checkScheduledMessagesNow(context);
+        rearm();
+    }
+
+    private static void listenTo(String userId) {
+        if (userId != null && userId.equals(listeningUserId)) {
+            return;
+        }
+        if (scheduledQuery != null) {
+            scheduledQuery.removeEventListener(scheduleListener);
+            scheduledQuery = null;
+        }
+        listeningUserId = userId;
+        deadlines.clear();
+        deadlinesById.clear();
+
+        if (userId != null) {
+            scheduledQuery = FirebaseDatabase.getInstance().getReference("schedule_messages")
+                    .orderByChild("sender_id").equalTo(userId);
+            scheduledQuery.addChildEventListener(scheduleListener);
+        }
+        rearm();
+    }
+
+    private static void put(ScheduleMessage message) {
+        if (message == null) {
+            return;
+        }
+        deadlinesById.put(message.getId(), message);
+        deadlines.add(message);
+        rearm();
+    }
+
+    private static void remove(String messageId) {
+        ScheduleMessage message = deadlinesById.remove(messageId);
+        if (message != null) {
+            deadlines.remove(message);
+            rearm();
+        }
+    }
+
+    // Point the alarm at the head of the queue, if it isn't already
+    private static void rearm() {
+        if (appContext == null) {
+            return;
+        }
+        ScheduleMessage next = deadlines.peek();
+        long now = System.currentTimeMillis();
+        long triggerAt;
+        if (next == null) {
+            triggerAt = 0;
+        } else if (next.getSendingTime() > now) {
+            triggerAt = next.getSendingTime();
+        } else if (armedTime > now && armedTime <= now + RETRY_DELAY_MS) {
+            // Already due and a retry is armed; the running check should send it before then
+            return;
+        } else {
+            // Already due; if the running check fails to send it, the retry alarm does
+            triggerAt = now + RETRY_DELAY_MS;
+        }
+        if (triggerAt == armedTime) {
+            return;
+        }
+
+        AlarmManager alarmManager = (AlarmManager) appContext.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent alarmIntent = PendingIntent.getBroadcast(appContext, 0,
+                new Intent(appContext, ScheduledMessageAlarmReceiver.class),
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+        if (triggerAt == 0) {
+            alarmManager.cancel(alarmIntent);
+        } else if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S || alarmManager.canScheduleExactAlarms()) {
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, triggerAt, alarmIntent);
+        } else {
+            // Without the exact alarm permission the system may deliver it a little late
+            alarmManager.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, triggerAt, alarmIntent);
+        }
+        armedTime = triggerAt;
     }
 }
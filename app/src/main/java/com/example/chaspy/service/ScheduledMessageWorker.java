@@ -2,48 +2,55 @@ package com.example.chaspy.service;
 
 import android.content.Context;
 import android.util.Log;
-import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
+import com.example.chaspy.data.mapper.SnapshotMapper;
+import com.example.chaspy.data.model.MessageType;
 import com.example.chaspy.data.model.ScheduleMessage;
 import com.example.chaspy.data.repository.ScheduleMessageRepository;
-import com.example.chaspy.data.repository.ChatRepository;
 import com.example.chaspy.data.service.ChatFirebaseService;
+import com.example.chaspy.data.service.ConversationFirebaseService;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.ValueEventListener;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ScheduledMessageWorker extends Worker {
     private static final String TAG = "ScheduledMessageWorker";
     private final ScheduleMessageRepository repository;
-    private final DatabaseReference conversationsRef;
-    private final ChatFirebaseService chatService;
+    private final ConversationFirebaseService conversationService;
     private static AtomicBoolean isRunning = new AtomicBoolean(false);
     private static long lastFullLogTime = 0;
     private static final long LOG_THROTTLE_MS = 5000;
-    // Add timeout constants
+    // Timeouts for the conversation lookups and the delivery update
     private static final int BATCH_TIMEOUT_SECONDS = 10;
     private static final int SINGLE_OPERATION_TIMEOUT_SECONDS = 5;
-    // Add a processing tracker to prevent duplicate sends
-    private static final ConcurrentHashMap<String, AtomicBoolean> processingMessages = new ConcurrentHashMap<>();
 
     public ScheduledMessageWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
         super(context, workerParams);
         repository = new ScheduleMessageRepository();
-        conversationsRef = FirebaseDatabase.getInstance().getReference("conversations");
-        chatService = new ChatFirebaseService();
+        conversationService = new ConversationFirebaseService();
     }
 
     @NonNull
@@ -64,9 +71,6 @@ public class ScheduledMessageWorker extends Worker {
     }
 
     private Result performWork() {
-        // Use atomic boolean to track success status
-        AtomicBoolean successFlag = new AtomicBoolean(true);
-        
         // Get current timestamp for checking scheduled messages
         long currentTimeMillis = System.currentTimeMillis();
         
@@ -77,174 +81,188 @@ public class ScheduledMessageWorker extends Worker {
             lastFullLogTime = currentTimeMillis;
         }
 
-        // Since we're already on a background thread provided by WorkManager,
-        // we can fetch messages and process them sequentially
-        try {
-            // Instead of using CountDownLatch, we can use a blocking get() here
-            // since we are already on a WorkManager background thread
-            repository.getPendingScheduledMessagesBlocking(currentTimeMillis, new ScheduleMessageRepository.ScheduleCallback<List<ScheduleMessage>>() {
-                @Override
-                public void onSuccess(List<ScheduleMessage> messages) {
-                    if (messages == null || messages.isEmpty()) {
-                        // No messages to send
-                        return;
-                    }
-                    
-                    // Process each message sequentially
-                    for (ScheduleMessage message : messages) {
-                        try {
-                            // Process this message
-                            processScheduledMessage(message);
-                        } catch (Exception e) {
-                            // Log error but continue with other messages
-                            Log.e(TAG, "Error processing scheduled message: " + e.getMessage(), e);
-                            successFlag.set(false);
-                        }
-                    }
-                }
-                
-                @Override
-                public void onError(String error) {
-                    Log.e(TAG, "Error fetching scheduled messages: " + error);
-                    successFlag.set(false);
-                }
-            });
-            
-            // Return appropriate result based on success flag
-            return successFlag.get() ? Result.success() : Result.retry();
+        // We're already on a WorkManager background thread, so the blocking fetch is fine here
+        AtomicReference<List<ScheduleMessage>> dueRef = new AtomicReference<>();
+        repository.getPendingScheduledMessagesBlocking(currentTimeMillis, new ScheduleMessageRepository.ScheduleCallback<List<ScheduleMessage>>() {
+            @Override
+            public void onSuccess(List<ScheduleMessage> messages) {
+                dueRef.set(messages);
+            }
             
+            @Override
+            public void onError(String error) {
+                Log.e(TAG, "Error fetching scheduled messages: " + error);
+            }
+        });
+        
+        List<ScheduleMessage> dueMessages = dueRef.get();
+        if (dueMessages == null) {
+            return Result.retry();
+        }
+        if (dueMessages.isEmpty()) {
+            return Result.success();
+        }
+        
+        try {
+            return deliver(dueMessages) ? Result.success() : Result.retry();
         } catch (Exception e) {
             Log.e(TAG, "Exception in worker thread: " + e.getMessage(), e);
             return Result.retry();
         }
     }
 
-    // Process a single scheduled message
-    private void processScheduledMessage(ScheduleMessage message) {
-        String messageId = message.getId();
-        
-        // Skip if we're already processing this message
-        if (!processingMessages.computeIfAbsent(messageId, k -> new AtomicBoolean(false)).compareAndSet(false, true)) {
-            Log.d(TAG, "Already processing message: " + messageId + ", skipping");
-            return;
+    /**
+     * Send every due message and remove its schedule entry in one multi-path update.
+     * Each message is keyed at the time its delivery started, so it sorts after the messages
+     * clients have already loaded; the key is stored in the schedule entry first, so if the
+     * update is retried after a crash it rewrites the same messages instead of sending them again.
+     *
+     * @return false if something should be retried
+     */
+    private boolean deliver(List<ScheduleMessage> dueMessages) throws Exception {
+        Map<String, String> conversationIds = resolveConversationIds(dueMessages);
+        if (conversationIds == null || !claimDeliveryKeys(dueMessages)) {
+            return false;
         }
-        
-        try {
-            String senderId = message.getSenderId();
-            String receiverId = message.getReceiverId();
-            String conversationId = message.getConversationId();
-            
-            Log.d(TAG, "Processing scheduled message: " + messageId + " for conversation: " + conversationId);
 
-            if (conversationId != null && !conversationId.isEmpty()) {
-                // We know the conversation ID, send directly
-                sendMessageAndCleanup(conversationId, message);
-            } else {
-                // Need to find the conversation ID first
-                findConversationAndSendMessage(message);
+        // Oldest first, so each conversation ends up with its newest message as the preview
+        List<ScheduleMessage> ordered = new ArrayList<>(dueMessages);
+        Collections.sort(ordered, Comparator.comparingLong(ScheduleMessage::getDeliveredAt)
+                .thenComparing(ScheduleMessage::getSendingTime));
+
+        Map<String, Object> updates = new HashMap<>();
+        int delivered = 0;
+        for (ScheduleMessage message : ordered) {
+            String conversationId = conversationIds.get(message.getId());
+            if (message.getMessageKey() == null) {
+                // Delivered by another device in the meantime
+                continue;
             }
-        } finally {
-            // Remove from processing map when done
-            processingMessages.remove(messageId);
+            if (conversationId == null) {
+                // Conversation not found, leave it scheduled
+                Log.e(TAG, "No conversation found for sender: " + message.getSenderId() + 
+                     " and receiver: " + message.getReceiverId());
+                continue;
+            }
+
+            ChatFirebaseService.putMessage(updates, conversationId, message.getMessageKey(),
+                    message.getSenderId(), message.getReceiverId(), message.getMessageContent(),
+                    MessageType.TEXT.getValue(), String.valueOf(message.getDeliveredAt()));
+            updates.put("schedule_messages/" + message.getId(), null);
+            delivered++;
         }
+        if (updates.isEmpty()) {
+            return true;
+        }
+
+        Tasks.await(FirebaseDatabase.getInstance().getReference().updateChildren(updates),
+                BATCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Log.d(TAG, "Delivered " + delivered + " scheduled messages in one update");
+        return true;
     }
 
-    private void findConversationAndSendMessage(ScheduleMessage message) {
-        String senderId = message.getSenderId();
-        String receiverId = message.getReceiverId();
-        
-        // First check where sender is user1
-        conversationsRef.orderByChild("user1_id").equalTo(senderId)
-            .addListenerForSingleValueEvent(new ValueEventListener() {
+    /**
+     * Give every due message without one a chat message key at the current time, stored in its
+     * schedule entry by a transaction so every device delivering it agrees on the same key.
+     * Messages whose entry is gone were delivered already and are left without a key.
+     *
+     * @return false if a claim failed or timed out
+     */
+    private boolean claimDeliveryKeys(List<ScheduleMessage> dueMessages) throws InterruptedException {
+        List<ScheduleMessage> unclaimed = new ArrayList<>();
+        for (ScheduleMessage message : dueMessages) {
+            if (message.getMessageKey() == null) {
+                unclaimed.add(message);
+            }
+        }
+        if (unclaimed.isEmpty()) {
+            return true;
+        }
+
+        CountDownLatch latch = new CountDownLatch(unclaimed.size());
+        AtomicBoolean failed = new AtomicBoolean(false);
+        DatabaseReference scheduleRef = FirebaseDatabase.getInstance().getReference("schedule_messages");
+        for (ScheduleMessage message : unclaimed) {
+            scheduleRef.child(message.getId()).runTransaction(new Transaction.Handler() {
+                @NonNull
                 @Override
-                public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                    if (!findAndProcessConversation(dataSnapshot, senderId, receiverId, message)) {
-                        // If not found, check where sender is user2
-                        conversationsRef.orderByChild("user2_id").equalTo(senderId)
-                            .addListenerForSingleValueEvent(new ValueEventListener() {
-                                @Override
-                                public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                                    if (!findAndProcessConversation(dataSnapshot, senderId, receiverId, message)) {
-                                        // Conversation not found
-                                        Log.e(TAG, "No conversation found for sender: " + senderId + 
-                                             " and receiver: " + receiverId);
-                                    }
-                                }
-
-                                @Override
-                                public void onCancelled(@NonNull DatabaseError databaseError) {
-                                    Log.e(TAG, "Database error checking user2_id: " + databaseError.getMessage());
-                                }
-                            });
+                public Transaction.Result doTransaction(@NonNull MutableData currentData) {
+                    // Null may only mean it isn't cached yet; committing null makes the server rerun it
+                    if (currentData.getValue() == null || currentData.hasChild("message_key")) {
+                        return Transaction.success(currentData);
                     }
+                    long now = System.currentTimeMillis();
+                    currentData.child("message_key").setValue(ChatFirebaseService.messageKeyAt(now, message.getId()));
+                    currentData.child("delivered_at").setValue(String.valueOf(now));
+                    return Transaction.success(currentData);
                 }
 
                 @Override
-                public void onCancelled(@NonNull DatabaseError databaseError) {
-                    Log.e(TAG, "Database error checking user1_id: " + databaseError.getMessage());
+                public void onComplete(DatabaseError error, boolean committed, DataSnapshot currentData) {
+                    if (error != null) {
+                        Log.e(TAG, "Failed to claim delivery of " + message.getId() + ": " + error.getMessage());
+                        failed.set(true);
+                    } else if (currentData != null) {
+                        ScheduleMessage claimed = SnapshotMapper.toScheduleMessage(currentData);
+                        if (claimed != null && claimed.getMessageKey() != null) {
+                            message.setDelivery(claimed.getMessageKey(), claimed.getDeliveredAt());
+                        }
+                    }
+                    latch.countDown();
                 }
             });
+        }
+
+        return latch.await(SINGLE_OPERATION_TIMEOUT_SECONDS, TimeUnit.SECONDS) && !failed.get();
     }
 
-    // Find matching conversation in snapshot and process the message
-    private boolean findAndProcessConversation(DataSnapshot dataSnapshot, 
-                                              String senderId, 
-                                              String receiverId,
-                                              ScheduleMessage message) {
-        for (DataSnapshot snapshot : dataSnapshot.getChildren()) {
-            String user1Id = snapshot.child("user1_id").getValue(String.class);
-            String user2Id = snapshot.child("user2_id").getValue(String.class);
-
-            if (user1Id != null && user2Id != null) {
-                if ((user1Id.equals(senderId) && user2Id.equals(receiverId)) ||
-                    (user1Id.equals(receiverId) && user2Id.equals(senderId))) {
-
-                    String conversationId = snapshot.getKey();
-                    sendMessageAndCleanup(conversationId, message);
-                    return true;
-                }
+    /**
+     * Conversation ID of every due message by schedule ID, looking up the ones that weren't
+     * stored with one. Messages whose conversation doesn't exist are left out.
+     *
+     * @return null if a lookup failed or timed out
+     */
+    private Map<String, String> resolveConversationIds(List<ScheduleMessage> dueMessages) throws InterruptedException {
+        Map<String, String> conversationIds = new ConcurrentHashMap<>();
+        List<ScheduleMessage> unresolved = new ArrayList<>();
+        for (ScheduleMessage message : dueMessages) {
+            String conversationId = message.getConversationId();
+            if (conversationId != null && !conversationId.isEmpty()) {
+                conversationIds.put(message.getId(), conversationId);
+            } else {
+                unresolved.add(message);
             }
         }
-        return false;
-    }
+        if (unresolved.isEmpty()) {
+            return conversationIds;
+        }
 
-    // Send the message and then delete the scheduled message entry
-    private void sendMessageAndCleanup(String conversationId, ScheduleMessage message) {
-        String timestamp = String.valueOf(System.currentTimeMillis());
-        String messageType = "text";
-        String senderId = message.getSenderId();
-        String messageContent = message.getMessageContent();
-        
-        Log.d(TAG, "Sending scheduled message to conversation: " + conversationId);
-        
-        chatService.sendMessage(conversationId, senderId, messageContent, messageType, timestamp,
-            new ChatRepository.ChatCallback<Void>() {
-                @Override
-                public void onSuccess(Void result) {
-                    Log.d(TAG, "Successfully sent scheduled message to conversation: " + conversationId);
-                    
-                    // Delete the scheduled message after successful send
-                    repository.deleteScheduledMessage(message.getId(), new ScheduleMessageRepository.ScheduleCallback<Void>() {
+        // One read of the pair's alias per message, all in flight at once
+        CountDownLatch latch = new CountDownLatch(unresolved.size());
+        AtomicBoolean failed = new AtomicBoolean(false);
+        for (ScheduleMessage message : unresolved) {
+            conversationService.findConversationWith(message.getSenderId(), message.getReceiverId(),
+                    new ConversationFirebaseService.ConversationIdCallback() {
                         @Override
-                        public void onSuccess(Void result) {
-                            Log.d(TAG, "Deleted scheduled message: " + message.getId());
+                        public void onSuccess(String conversationId) {
+                            if (conversationId != null) {
+                                conversationIds.put(message.getId(), conversationId);
+                            }
+                            latch.countDown();
                         }
-                        
+
                         @Override
-                        public void onError(String error) {
-                            Log.e(TAG, "Failed to delete scheduled message after sending: " + error);
+                        public void onFailure(String error) {
+                            Log.e(TAG, "Database error looking up conversation: " + error);
+                            failed.set(true);
+                            latch.countDown();
                         }
                     });
-                }
-                
-                @Override
-                public void onError(String errorMessage) {
-                    Log.e(TAG, "Failed to send scheduled message: " + errorMessage);
-                }
-            });
-    }
+        }
 
-    private interface SendCallback {
-        void onComplete(boolean isSuccessful);
+        if (!latch.await(SINGLE_OPERATION_TIMEOUT_SECONDS, TimeUnit.SECONDS) || failed.get()) {
+            return null;
+        }
+        return conversationIds;
     }
 }
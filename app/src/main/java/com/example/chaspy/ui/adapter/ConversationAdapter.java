@@ -1,5 +1,7 @@
 package com.example.chaspy.ui.adapter;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -12,17 +14,29 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.chaspy.R;
 import com.example.chaspy.data.model.Conversation;
+import com.example.chaspy.ui.format.TimestampFormatter;
 import com.squareup.picasso.Picasso;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
+import java.util.Objects;
 
 public class ConversationAdapter extends ListAdapter<Conversation, ConversationAdapter.ConversationViewHolder> {
 
+    // Partial rebinds: the last message changed, or only the relative time label may have
+    private static final Object PAYLOAD_LAST_MESSAGE = new Object();
+    private static final Object PAYLOAD_TIME_TICK = new Object();
+
     private OnItemClickListener onItemClickListener;
+    private final Handler tickHandler = new Handler(Looper.getMainLooper());
+    private final Runnable minuteTick = new Runnable() {
+        @Override
+        public void run() {
+            if (getItemCount() > 0) {
+                notifyItemRangeChanged(0, getItemCount(), PAYLOAD_TIME_TICK);
+            }
+            tickHandler.postDelayed(this, TimestampFormatter.millisUntilNextMinute());
+        }
+    };
 
     // DiffCallback for efficient updates
     private static final DiffUtil.ItemCallback<Conversation> DIFF_CALLBACK = new DiffUtil.ItemCallback<Conversation>() {
@@ -34,19 +48,19 @@ public class ConversationAdapter extends ListAdapter<Conversation, ConversationA
         @Override
         public boolean areContentsTheSame(@NonNull Conversation oldItem, @NonNull Conversation newItem) {
             // Check all relevant fields to avoid unnecessary updates
-            return oldItem.getLastMessage().equals(newItem.getLastMessage()) &&
-                   oldItem.getLastMessageTime().equals(newItem.getLastMessageTime()) &&
-                   oldItem.getFriendUsername().equals(newItem.getFriendUsername()) &&
-                   oldItem.getProfilePicUrl().equals(newItem.getProfilePicUrl());
+            return oldItem.getLastMessageTimeMillis() == newItem.getLastMessageTimeMillis() &&
+                   Objects.equals(oldItem.getLastMessage(), newItem.getLastMessage()) &&
+                   Objects.equals(oldItem.getFriendUsername(), newItem.getFriendUsername()) &&
+                   Objects.equals(oldItem.getProfilePicUrl(), newItem.getProfilePicUrl());
         }
 
         @Override
         public Object getChangePayload(@NonNull Conversation oldItem, @NonNull Conversation newItem) {
-            // Return a non-null value to enable partial view updates
-            // This tells RecyclerView that we want to do partial rebinding
-            if (!oldItem.getLastMessage().equals(newItem.getLastMessage()) || 
-                !oldItem.getLastMessageTime().equals(newItem.getLastMessageTime())) {
-                return true;
+            // Only the message and time changed: rebind those two views instead of the whole row,
+            // which would reload the avatar
+            if (Objects.equals(oldItem.getFriendUsername(), newItem.getFriendUsername()) &&
+                Objects.equals(oldItem.getProfilePicUrl(), newItem.getProfilePicUrl())) {
+                return PAYLOAD_LAST_MESSAGE;
             }
             return null;
         }
@@ -79,20 +93,34 @@ public class ConversationAdapter extends ListAdapter<Conversation, ConversationA
         if (payloads.isEmpty()) {
             // Full rebind if no payload
             onBindViewHolder(holder, position);
-        } else {
-            // Partial rebind
-            Conversation conversation = getItem(position);
-            
-            // Only update the message and time
+            return;
+        }
+
+        // Partial rebind
+        Conversation conversation = getItem(position);
+        if (payloads.contains(PAYLOAD_LAST_MESSAGE)) {
             holder.lastMessageTextView.setText(conversation.getLastMessage());
-            holder.lastMessageTimeTextView.setText(formatTimestamp(conversation.getLastMessageTime()));
         }
+        bindTime(holder, conversation);
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        // Relative labels ("9:30 AM", "2 ngày trước") are refreshed at the start of every minute
+        tickHandler.postDelayed(minuteTick, TimestampFormatter.millisUntilNextMinute());
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        tickHandler.removeCallbacks(minuteTick);
     }
     
     private void bindViewHolder(ConversationViewHolder holder, Conversation conversation) {
         holder.friendUsernameTextView.setText(conversation.getFriendUsername());
         holder.lastMessageTextView.setText(conversation.getLastMessage());
-        holder.lastMessageTimeTextView.setText(formatTimestamp(conversation.getLastMessageTime()));
+        bindTime(holder, conversation);
 
         // Load the profile picture using Picasso with caching
         if (conversation.getProfilePicUrl() != null && !conversation.getProfilePicUrl().isEmpty()) {
@@ -111,48 +139,15 @@ public class ConversationAdapter extends ListAdapter<Conversation, ConversationA
             holder.itemView.setOnClickListener(v -> onItemClickListener.onItemClick(conversation));
         }
     }
-    
-    /**
-     * Formats a timestamp string to a readable relative time format
-     * @param timestamp The timestamp string to format
-     * @return Formatted time string in Vietnamese relative format (e.g., "10:30 AM" for today or "2 ngày trước")
-     */
-    private String formatTimestamp(String timestamp) {
-        try {
-            // Parse the timestamp string to a Date object
-            Date messageDate;
-            if (timestamp.matches("\\d+")) {
-                // If timestamp is a numeric string (milliseconds)
-                long millis = Long.parseLong(timestamp);
-                messageDate = new Date(millis);
-            } else {
-                // If timestamp is in some other format, try to parse it
-                SimpleDateFormat inputFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.getDefault());
-                messageDate = inputFormat.parse(timestamp);
-            }
-            
-            // Get current time
-            Date currentDate = new Date();
-            
-            // Calculate time difference in milliseconds
-            long diffInMillis = currentDate.getTime() - messageDate.getTime();
-            
-            // Convert to minutes
-            long diffInMinutes = diffInMillis / (60 * 1000);
-            
-            // If less than 24 hours, show the actual time in h:mm a format (with AM/PM)
-            if (diffInMinutes < 24 * 60) {
-                SimpleDateFormat timeFormat = new SimpleDateFormat("h:mm a", Locale.getDefault());
-                return timeFormat.format(messageDate);
-            } else {
-                // Otherwise show as "X ngày trước"
-                long diffInDays = diffInMinutes / (24 * 60);
-                return diffInDays + " ngày trước";
-            }
-            
-        } catch (ParseException | NumberFormatException e) {
-            // If parsing fails, return the original timestamp
-            return timestamp;
+
+    private void bindTime(ConversationViewHolder holder, Conversation conversation) {
+        // Labels come from the formatter's cache; skip setText when a tick didn't change the label
+        String label = conversation.getLastMessageTimeMillis() > 0
+                ? TimestampFormatter.formatRelative(conversation.getLastMessageTimeMillis())
+                : conversation.getLastMessageTime();
+        if (!Objects.equals(label, holder.timeLabel)) {
+            holder.timeLabel = label;
+            holder.lastMessageTimeTextView.setText(label);
         }
     }
 
@@ -164,6 +159,8 @@ public class ConversationAdapter extends ListAdapter<Conversation, ConversationA
 
         ImageView profilePicImageView;
         TextView friendUsernameTextView, lastMessageTextView, lastMessageTimeTextView;
+        // Label currently shown in lastMessageTimeTextView
+        String timeLabel;
 
         public ConversationViewHolder(View itemView) {
             super(itemView);
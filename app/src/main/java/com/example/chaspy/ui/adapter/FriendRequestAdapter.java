@@ -13,6 +13,7 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.bumptech.glide.Glide;
 import com.example.chaspy.R;
 import com.example.chaspy.data.model.FriendRequest;
+import com.example.chaspy.data.search.SearchIndex;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -23,6 +24,7 @@ public class FriendRequestAdapter extends RecyclerView.Adapter<FriendRequestAdap
 
     private List<FriendRequest> friendRequests;
     private List<FriendRequest> filteredFriendRequests;
+    private final SearchIndex<FriendRequest> searchIndex = new SearchIndex<>(FriendRequest::getSenderName);
     private Context context;
     private OnRequestActionListener actionListener;
 
@@ -42,12 +44,16 @@ public class FriendRequestAdapter extends RecyclerView.Adapter<FriendRequestAdap
     public void setFriendRequests(List<FriendRequest> friendRequests) {
         this.friendRequests = friendRequests;
         this.filteredFriendRequests = new ArrayList<>(friendRequests);
+        // Showing a new list drops any search still running on the old one
+        searchIndex.cancel();
+        searchIndex.setItems(friendRequests);
         notifyDataSetChanged();
     }
 
     public void addFriendRequest(FriendRequest friendRequest) {
         this.friendRequests.add(friendRequest);
         this.filteredFriendRequests.add(friendRequest);
+        searchIndex.setItems(friendRequests);
         notifyItemInserted(filteredFriendRequests.size() - 1);
     }
 
@@ -56,6 +62,7 @@ public class FriendRequestAdapter extends RecyclerView.Adapter<FriendRequestAdap
             FriendRequest requestToRemove = filteredFriendRequests.get(position);
             filteredFriendRequests.remove(position);
             friendRequests.remove(requestToRemove);
+            searchIndex.setItems(friendRequests);
             notifyItemRemoved(position);
         }
     }
@@ -83,22 +90,18 @@ public class FriendRequestAdapter extends RecyclerView.Adapter<FriendRequestAdap
         return filteredFriendRequests.size();
     }
 
-    public void filterRequests(String query) {
-        filteredFriendRequests.clear();
-
-        if (query == null || query.isEmpty()) {
-            filteredFriendRequests.addAll(friendRequests);
-        } else {
-            String lowerCaseQuery = query.toLowerCase().trim();
-            for (FriendRequest request : friendRequests) {
-                if (request.getSenderName() != null &&
-                        request.getSenderName().toLowerCase().contains(lowerCaseQuery)) {
-                    filteredFriendRequests.add(request);
-                }
+    /**
+     * Show only requests whose sender name matches the query; an empty query shows all of them.
+     * The search runs in the background and onFiltered runs once the list is updated.
+     */
+    public void filterRequests(String query, Runnable onFiltered) {
+        searchIndex.search(query, results -> {
+            filteredFriendRequests = results;
+            notifyDataSetChanged();
+            if (onFiltered != null) {
+                onFiltered.run();
             }
-        }
-
-        notifyDataSetChanged();
+        });
     }
 
     class FriendRequestViewHolder extends RecyclerView.ViewHolder {
@@ -4,8 +4,6 @@ import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.Filter;
-import android.widget.Filterable;
 import android.widget.ImageView;
 import android.widget.TextView;
 
@@ -15,14 +13,17 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.bumptech.glide.Glide;
 import com.example.chaspy.R;
 import com.example.chaspy.data.model.FriendItem;
+import com.example.chaspy.data.search.SearchIndex;
 
 import java.util.ArrayList;
 import java.util.List;
 
-public class FriendsAdapter extends RecyclerView.Adapter<FriendsAdapter.FriendViewHolder> implements Filterable {
+public class FriendsAdapter extends RecyclerView.Adapter<FriendsAdapter.FriendViewHolder> {
 
     private List<FriendItem> friendsList;
     private List<FriendItem> friendsListFull;
+    private final SearchIndex<FriendItem> searchIndex = new SearchIndex<>(FriendItem::getName);
+    private String currentQuery = "";
     private Context context;
     private OnFriendClickListener listener;
 
@@ -97,66 +98,91 @@ public class FriendsAdapter extends RecyclerView.Adapter<FriendsAdapter.FriendVi
         // Always create new instances to avoid reference issues
         this.friendsList = new ArrayList<>(friendsList); 
         this.friendsListFull = new ArrayList<>(friendsList);
+        this.currentQuery = "";
+        // Showing a new list drops any search still running on the old one
+        searchIndex.cancel();
+        searchIndex.setItems(this.friendsListFull);
         notifyDataSetChanged();
     }
 
-    public void removeFriend(int position) {
-        if (position >= 0 && position < friendsList.size()) {
-            FriendItem removedItem = friendsList.get(position);
-            friendsList.remove(position);
-            
-            // Find and remove the item from the full list as well
-            for (int i = 0; i < friendsListFull.size(); i++) {
-                if (friendsListFull.get(i).getUid().equals(removedItem.getUid())) {
-                    friendsListFull.remove(i);
-                    break;
-                }
-            }
-            
-            notifyItemRemoved(position);
-            
-            // Notify data set changed only if the list is empty
-            if (friendsList.isEmpty()) {
-                notifyDataSetChanged();
-            }
+    /**
+     * Add one friend without rebinding the rows already shown.
+     */
+    public void addFriend(FriendItem friend) {
+        friendsListFull.add(friend);
+        searchIndex.setItems(friendsListFull);
+        if (currentQuery.isEmpty()) {
+            friendsList.add(friend);
+            notifyItemInserted(friendsList.size() - 1);
+        } else {
+            // Only shown if it matches the active search
+            filter(currentQuery, null);
         }
     }
 
-    @Override
-    public Filter getFilter() {
-        return friendsFilter;
+    /**
+     * Remove the friend with the given UID, if present.
+     */
+    public void removeFriend(String uid) {
+        for (int i = 0; i < friendsListFull.size(); i++) {
+            if (friendsListFull.get(i).getUid().equals(uid)) {
+                friendsListFull.remove(i);
+                searchIndex.setItems(friendsListFull);
+                break;
+            }
+        }
+        for (int i = 0; i < friendsList.size(); i++) {
+            if (friendsList.get(i).getUid().equals(uid)) {
+                friendsList.remove(i);
+                notifyItemRemoved(i);
+                break;
+            }
+        }
     }
 
-    private Filter friendsFilter = new Filter() {
-        @Override
-        protected FilterResults performFiltering(CharSequence constraint) {
-            List<FriendItem> filteredList = new ArrayList<>();
-            
-            if (constraint == null || constraint.length() == 0) {
-                filteredList.addAll(friendsListFull);
-            } else {
-                String filterPattern = constraint.toString().toLowerCase().trim();
-                
-                for (FriendItem item : friendsListFull) {
-                    // Search only by name (not email)
-                    if (item.getName().toLowerCase().contains(filterPattern)) {
-                        filteredList.add(item);
-                    }
-                }
+    /**
+     * Replace the friend with the same UID, e.g. after they changed their name or went offline.
+     */
+    public void updateFriend(FriendItem friend) {
+        for (int i = 0; i < friendsListFull.size(); i++) {
+            if (friendsListFull.get(i).getUid().equals(friend.getUid())) {
+                friendsListFull.set(i, friend);
+                searchIndex.setItems(friendsListFull);
+                break;
+            }
+        }
+        if (!currentQuery.isEmpty()) {
+            // A new name may match the active search differently
+            filter(currentQuery, null);
+            return;
+        }
+        for (int i = 0; i < friendsList.size(); i++) {
+            if (friendsList.get(i).getUid().equals(friend.getUid())) {
+                friendsList.set(i, friend);
+                notifyItemChanged(i);
+                break;
             }
-            
-            FilterResults results = new FilterResults();
-            results.values = filteredList;
-            return results;
         }
+    }
+
+    public int getFriendCount() {
+        return friendsListFull.size();
+    }
 
-        @Override
-        protected void publishResults(CharSequence constraint, FilterResults results) {
-            friendsList.clear();
-            friendsList.addAll((List) results.values);
+    /**
+     * Show only friends whose name matches the query; an empty query shows everyone.
+     * The search runs in the background and the list updates when it finishes.
+     */
+    public void filter(String query, Runnable onFiltered) {
+        currentQuery = query != null ? query : "";
+        searchIndex.search(query, results -> {
+            friendsList = results;
             notifyDataSetChanged();
-        }
-    };
+            if (onFiltered != null) {
+                onFiltered.run();
+            }
+        });
+    }
 
     static class FriendViewHolder extends RecyclerView.ViewHolder {
         TextView tvFriendName, tvFriendEmail, tvStatus;
@@ -1,7 +1,8 @@
 package com.example.chaspy.ui.adapter;
 
 import android.graphics.Color;
-import android.text.format.DateFormat;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -10,39 +11,60 @@ import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 import androidx.cardview.widget.CardView;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.chaspy.R;
 import com.example.chaspy.data.model.Message;
+import com.example.chaspy.ui.format.TimestampFormatter;
+import com.example.chaspy.ui.viewmodel.MessageListUpdate;
 import com.squareup.picasso.Picasso;
 
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
-import java.util.Map;
-
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shows a chat's messages in display order (oldest first), following ChatViewModel's updates.
+ *
+ * A single new, sent or delivered message is patched in at the position the view model placed
+ * it, so it inserts or rebinds one row. Bulk changes (pages, the cached history) are diffed
+ * against the shown list on a background thread, and only the changed rows are dispatched.
+ */
 public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
     private static final int VIEW_TYPE_SENT = 1;
     private static final int VIEW_TYPE_RECEIVED = 2;
 
-    private List<Message> messageList = new ArrayList<>();
-    private Map<String, Integer> messagePositions = new HashMap<>();
+    private static final ExecutorService DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    // FNV-1a, 64-bit
+    private static final long HASH_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long HASH_PRIME = 0x100000001b3L;
+
     private String currentUserId;
     private String friendProfilePicUrl;
     private String themeColor = "#A9E7FD";
 
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private List<Message> messages = new ArrayList<>();
+    // Version of the last update shown; a single update only applies right on top of it
+    private int appliedVersion = 0;
+    // Bumped by every bulk submit, so a diff that was overtaken is dropped
+    private int diffGeneration = 0;
+    private boolean diffPending = false;
+
     public MessageAdapter(String currentUserId) {
         this.currentUserId = currentUserId;
+        setHasStableIds(true);
     }
 
     public MessageAdapter(String currentUserId, String friendProfilePicUrl) {
         this.currentUserId = currentUserId;
         this.friendProfilePicUrl = friendProfilePicUrl;
+        setHasStableIds(true);
     }
 
     public void setFriendProfilePicUrl(String url) {
@@ -54,7 +76,7 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
 
     @Override
     public int getItemViewType(int position) {
-        Message message = messageList.get(position);
+        Message message = messages.get(position);
         if (message.getSenderId().equals(currentUserId)) {
             return VIEW_TYPE_SENT;
         } else {
@@ -78,7 +100,7 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
 
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
-        Message message = messageList.get(position);
+        Message message = messages.get(position);
 
         if (holder.getItemViewType() == VIEW_TYPE_SENT) {
             ((SentMessageViewHolder) holder).bind(message);
@@ -90,74 +112,125 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
 
     @Override
     public int getItemCount() {
-        return messageList.size();
+        return messages.size();
     }
 
-    public void setMessages(List<Message> messages) {
-        this.messageList.clear();
-        this.messagePositions.clear();
-
-        if (messages != null) {
-            this.messageList.addAll(messages);
-            sortMessages();
-
-            // Update position map
-            for (int i = 0; i < this.messageList.size(); i++) {
-                messagePositions.put(this.messageList.get(i).getMessageId(), i);
-            }
+    /**
+     * Patch in a single message update.
+     *
+     * @return false if it can't be applied on top of what is shown (a bulk update, a missed
+     *         version or a diff still running); submit the whole list instead
+     */
+    public boolean applyUpdate(MessageListUpdate update) {
+        if (update.isBulk() || diffPending || update.getVersion() != appliedVersion + 1) {
+            return false;
         }
 
-        notifyDataSetChanged();
+        int position = update.getPosition();
+        int previousPosition = update.getPreviousPosition();
+        if (previousPosition < 0) {
+            messages.add(position, update.getMessage());
+            notifyItemInserted(position);
+        } else if (!messages.get(previousPosition).getMessageId().equals(update.getMessage().getMessageId())) {
+            // A pending copy replaced by the same message under its delivery key, a different row ID
+            messages.remove(previousPosition);
+            notifyItemRemoved(previousPosition);
+            messages.add(position, update.getMessage());
+            notifyItemInserted(position);
+        } else if (previousPosition == position) {
+            messages.set(position, update.getMessage());
+            notifyItemChanged(position);
+        } else {
+            messages.remove(previousPosition);
+            messages.add(position, update.getMessage());
+            notifyItemMoved(previousPosition, position);
+            notifyItemChanged(position);
+        }
+        appliedVersion = update.getVersion();
+        return true;
     }
 
-    public void addMessage(Message message) {
-        if (message == null || messagePositions.containsKey(message.getMessageId())) {
-            return; // Skip if null or already exists
-        }
+    /**
+     * Show a whole list. It is diffed against the shown one on a background thread, then only
+     * the changed rows are dispatched. A later submit replaces one that is still being diffed.
+     *
+     * @param version Version of the updates the list reflects
+     * @param onCommitted Run on the main thread once the list is shown
+     */
+    public void submitList(List<Message> newList, int version, Runnable onCommitted) {
+        final int generation = ++diffGeneration;
+        final List<Message> oldList = messages;
+        final List<Message> newMessages = new ArrayList<>(newList);
+        diffPending = true;
+
+        // Single updates wait for the diff, so the shown list stays as it is while it runs
+        DIFF_EXECUTOR.execute(() -> {
+            DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return oldList.size();
+                }
 
-        messageList.add(message);
-        sortMessages();
+                @Override
+                public int getNewListSize() {
+                    return newMessages.size();
+                }
 
-        // Update all positions as sorting may have changed positions
-        messagePositions.clear();
-        for (int i = 0; i < messageList.size(); i++) {
-            messagePositions.put(messageList.get(i).getMessageId(), i);
-        }
+                @Override
+                public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                    return DIFF_CALLBACK.areItemsTheSame(oldList.get(oldPosition), newMessages.get(newPosition));
+                }
 
-        notifyDataSetChanged();
-    }
+                @Override
+                public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                    return DIFF_CALLBACK.areContentsTheSame(oldList.get(oldPosition), newMessages.get(newPosition));
+                }
+            }, false);
 
-    /**
-     * Sort messages by timestamp to ensure chronological order (oldest first)
-     */
-    private void sortMessages() {
-        Collections.sort(messageList, new Comparator<Message>() {
-            @Override
-            public int compare(Message m1, Message m2) {
-                try {
-                    long time1 = Long.parseLong(m1.getTimestamp());
-                    long time2 = Long.parseLong(m2.getTimestamp());
-                    return Long.compare(time1, time2);
-                } catch (NumberFormatException e) {
-                    return 0; // Keep original order if parsing fails
+            mainHandler.post(() -> {
+                if (generation != diffGeneration) {
+                    return;
                 }
-            }
+                messages = newMessages;
+                appliedVersion = version;
+                diffPending = false;
+                result.dispatchUpdatesTo(this);
+                if (onCommitted != null) {
+                    onCommitted.run();
+                }
+            });
         });
     }
 
-    private String formatTime(String timestamp) {
-        try {
-            // Parse the timestamp string to long
-            long timeMillis = Long.parseLong(timestamp);
-            Calendar calendar = Calendar.getInstance(Locale.getDefault());
-            calendar.setTimeInMillis(timeMillis);
-            return DateFormat.format("hh:mm a", calendar).toString();
-        } catch (NumberFormatException e) {
-            // If parsing fails, return the timestamp as is or a default value
-            return "Unknown time";
+    /**
+     * Derived from the message key, so it stays the same for a message however often the list
+     * changes, without keeping a map of every key ever shown
+     */
+    @Override
+    public long getItemId(int position) {
+        String messageId = messages.get(position).getMessageId();
+        long hash = HASH_OFFSET_BASIS;
+        for (int i = 0; i < messageId.length(); i++) {
+            hash ^= messageId.charAt(i);
+            hash *= HASH_PRIME;
         }
+        return hash;
     }
 
+    private static final DiffUtil.ItemCallback<Message> DIFF_CALLBACK = new DiffUtil.ItemCallback<Message>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Message oldMessage, @NonNull Message newMessage) {
+            return oldMessage.getMessageId().equals(newMessage.getMessageId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Message oldMessage, @NonNull Message newMessage) {
+            return Objects.equals(oldMessage.getMessageContent(), newMessage.getMessageContent())
+                    && oldMessage.getTimestamp() == newMessage.getTimestamp()
+                    && oldMessage.isPending() == newMessage.isPending();
+        }
+    };
+
     // ViewHolder for sent messages
     static class SentMessageViewHolder extends RecyclerView.ViewHolder {
         private TextView tvMessage;
@@ -172,15 +245,13 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         void bind(Message message) {
             tvMessage.setText(message.getMessageContent());
 
-            // Format and set timestamp
-            try {
-                long timeMillis = Long.parseLong(message.getTimestamp());
-                Calendar calendar = Calendar.getInstance(Locale.getDefault());
-                calendar.setTimeInMillis(timeMillis);
-                String formattedTime = DateFormat.format("hh:mm a", calendar).toString();
-                tvTimestamp.setText(formattedTime);
-            } catch (NumberFormatException e) {
-                tvTimestamp.setText("Unknown time");
+            // Format and set timestamp, or show that the message is still in the outbox
+            if (message.isPending()) {
+                tvTimestamp.setText("Sending...");
+                itemView.setAlpha(0.6f);
+            } else {
+                tvTimestamp.setText(TimestampFormatter.formatClockTime(message.getTimestamp()));
+                itemView.setAlpha(1f);
             }
         }
     }
@@ -204,15 +275,7 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
             tvMessage.setText(message.getMessageContent());
 
             // Format and set timestamp
-            try {
-                long timeMillis = Long.parseLong(message.getTimestamp());
-                Calendar calendar = Calendar.getInstance(Locale.getDefault());
-                calendar.setTimeInMillis(timeMillis);
-                String formattedTime = DateFormat.format("hh:mm a", calendar).toString();
-                tvTimestamp.setText(formattedTime);
-            } catch (NumberFormatException e) {
-                tvTimestamp.setText("Unknown time");
-            }
+            tvTimestamp.setText(TimestampFormatter.formatClockTime(message.getTimestamp()));
 
             // Load profile picture
             if (profilePicUrl != null && !profilePicUrl.isEmpty()) {
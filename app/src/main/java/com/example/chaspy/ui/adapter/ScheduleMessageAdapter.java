@@ -11,12 +11,10 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.chaspy.R;
 import com.example.chaspy.data.model.ScheduleMessage;
+import com.example.chaspy.ui.format.TimestampFormatter;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 
 public class ScheduleMessageAdapter extends RecyclerView.Adapter<ScheduleMessageAdapter.ViewHolder> {
 
@@ -83,9 +81,7 @@ public class ScheduleMessageAdapter extends RecyclerView.Adapter<ScheduleMessage
             tvMessageContent.setText(message.getMessageContent());
 
             // Format date as "HH:mm dd/MM/yyyy"
-            SimpleDateFormat sdf = new SimpleDateFormat("HH:mm dd/MM/yyyy", Locale.getDefault());
-            String formattedDate = sdf.format(new Date(message.getSendingTime()));
-            tvScheduleTime.setText(formattedDate);
+            tvScheduleTime.setText(TimestampFormatter.formatDateTime(message.getSendingTime()));
 
             // Set delete button click listener
             btnCancel.setOnClickListener(v -> {
@@ -0,0 +1,157 @@
+package com.example.chaspy.ui.format;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.LongSparseArray;
+
+import androidx.core.content.ContextCompat;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Formats message and conversation times for every adapter.
+ *
+ * The java.time formatters are immutable and built once, and each formatted string is cached
+ * per minute, so binding a row that was already shown allocates nothing. Everything shown is
+ * minute precision, so the cached string is always the right one for that minute.
+ * The formatters and caches are rebuilt when the time zone or locale changes, see
+ * watchSettingChanges. Safe to call from any thread.
+ */
+public final class TimestampFormatter {
+    private static final long MINUTE_MS = 60 * 1000;
+    private static final long DAY_MINUTES = 24 * 60;
+    // Each cache is dropped and refilled once it grows past this
+    private static final int MAX_CACHED = 512;
+
+    // Built for the locale at the time, see reset()
+    private static volatile DateTimeFormatter clockTime;
+    private static volatile DateTimeFormatter shortClockTime;
+    private static volatile DateTimeFormatter dateTime;
+
+    private static final LongSparseArray<String> clockTimes = new LongSparseArray<>();
+    private static final LongSparseArray<String> dateTimes = new LongSparseArray<>();
+    // Relative labels depend on the current minute too, so they are only valid for relativeMinute
+    private static final LongSparseArray<String> relativeTimes = new LongSparseArray<>();
+    private static long relativeMinute = -1;
+
+    static {
+        reset();
+    }
+
+    private TimestampFormatter() {
+    }
+
+    /**
+     * Rebuild the formatters and drop every cached string whenever the time zone or locale
+     * changes, so times aren't shown for the old ones until the process dies. Call once.
+     */
+    public static void watchSettingChanges(Context context) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        // System broadcasts still arrive at a receiver that isn't exported
+        ContextCompat.registerReceiver(context.getApplicationContext(), new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                reset();
+            }
+        }, filter, ContextCompat.RECEIVER_NOT_EXPORTED);
+    }
+
+    private static void reset() {
+        Locale locale = Locale.getDefault();
+        clockTime = DateTimeFormatter.ofPattern("hh:mm a", locale);
+        shortClockTime = DateTimeFormatter.ofPattern("h:mm a", locale);
+        dateTime = DateTimeFormatter.ofPattern("HH:mm dd/MM/yyyy", locale);
+
+        synchronized (clockTimes) {
+            clockTimes.clear();
+        }
+        synchronized (dateTimes) {
+            dateTimes.clear();
+        }
+        synchronized (relativeTimes) {
+            relativeTimes.clear();
+            relativeMinute = -1;
+        }
+    }
+
+    /**
+     * Time of day, e.g. "09:30 AM", as shown under chat messages.
+     */
+    public static String formatClockTime(long timeMillis) {
+        if (timeMillis <= 0) {
+            return "Unknown time";
+        }
+        return cached(clockTimes, timeMillis, clockTime);
+    }
+
+    /**
+     * Time and date, e.g. "09:30 24/12/2025", as shown for scheduled messages.
+     */
+    public static String formatDateTime(long timeMillis) {
+        return cached(dateTimes, timeMillis, dateTime);
+    }
+
+    /**
+     * Time of the last message relative to now, as shown in the inbox: "9:30 AM" within
+     * the last 24 hours, otherwise "X ngày trước".
+     */
+    public static String formatRelative(long timeMillis) {
+        long minute = Math.floorDiv(timeMillis, MINUTE_MS);
+        long nowMinute = Math.floorDiv(System.currentTimeMillis(), MINUTE_MS);
+
+        synchronized (relativeTimes) {
+            if (nowMinute != relativeMinute) {
+                relativeTimes.clear();
+                relativeMinute = nowMinute;
+            }
+            String label = relativeTimes.get(minute);
+            if (label == null) {
+                long diffInMinutes = nowMinute - minute;
+                if (diffInMinutes < DAY_MINUTES) {
+                    label = format(shortClockTime, timeMillis);
+                } else {
+                    label = (diffInMinutes / DAY_MINUTES) + " ngày trước";
+                }
+                putBounded(relativeTimes, minute, label);
+            }
+            return label;
+        }
+    }
+
+    /**
+     * Milliseconds until the next minute starts, when relative labels may change.
+     */
+    public static long millisUntilNextMinute() {
+        return MINUTE_MS - Math.floorMod(System.currentTimeMillis(), MINUTE_MS);
+    }
+
+    private static String cached(LongSparseArray<String> cache, long timeMillis, DateTimeFormatter formatter) {
+        long minute = Math.floorDiv(timeMillis, MINUTE_MS);
+        synchronized (cache) {
+            String label = cache.get(minute);
+            if (label == null) {
+                label = format(formatter, timeMillis);
+                putBounded(cache, minute, label);
+            }
+            return label;
+        }
+    }
+
+    private static String format(DateTimeFormatter formatter, long timeMillis) {
+        return formatter.format(Instant.ofEpochMilli(timeMillis).atZone(ZoneId.systemDefault()));
+    }
+
+    private static void putBounded(LongSparseArray<String> cache, long minute, String label) {
+        if (cache.size() >= MAX_CACHED) {
+            cache.clear();
+        }
+        cache.put(minute, label);
+    }
+}
@@ -48,6 +48,9 @@ import java.util.Date;
 
 public class ChatActivity extends AppCompatActivity {
 
+    // Start fetching the previous page when this close to the top of the list
+    private static final int LOAD_MORE_THRESHOLD = 5;
+
     private RecyclerView chatRecyclerView;
     private EditText messageInput;
     private CardView btnSend;
@@ -61,6 +64,8 @@ public class ChatActivity extends AppCompatActivity {
     private MessageAdapter messageAdapter;
     private LinearLayoutManager layoutManager;
     private ChatViewModel chatViewModel;
+    // Set by the view model's scroll event, cleared once the list it came with is shown
+    private boolean scrollToNewestPending = false;
 
     private String conversationId;
     private String friendUsername;
@@ -164,6 +169,16 @@ public class ChatActivity extends AppCompatActivity {
         // Create MessageAdapter with current user ID and friend's profile pic URL
         messageAdapter = new MessageAdapter(currentUserId, friendProfilePicUrl);
         chatRecyclerView.setAdapter(messageAdapter);
+
+        // Load older history on demand as the user scrolls up
+        chatRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (dy < 0 && layoutManager.findFirstVisibleItemPosition() <= LOAD_MORE_THRESHOLD) {
+                    chatViewModel.loadOlderMessages();
+                }
+            }
+        });
     }
 
     private void setupUserInterface() {
@@ -191,19 +206,23 @@ public class ChatActivity extends AppCompatActivity {
         chatViewModel = new ViewModelProvider(this).get(ChatViewModel.class);
         chatViewModel.init(conversationId, currentUserId);
 
-        // Observe messages
-        chatViewModel.getMessages().observe(this, messages -> {
-            if (messages != null) {
-                messageAdapter.setMessages(messages);
-                scrollToBottom();
+        // Only remembered here; the scroll happens once the list it belongs to is applied
+        chatViewModel.getScrollToNewest().observe(this, event -> {
+            if (event != null && event.getContentIfNotHandled() != null) {
+                scrollToNewestPending = true;
             }
         });
 
-        // Observe new messages
-        chatViewModel.getNewMessageAdded().observe(this, message -> {
-            if (message != null) {
-                messageAdapter.addMessage(message);
-                scrollToBottom();
+        // Single messages are patched in; pages, or an update the adapter can't apply on top
+        // of what it shows, bring the whole loaded history
+        chatViewModel.getMessageUpdates().observe(this, update -> {
+            if (update == null) {
+                return;
+            }
+            if (messageAdapter.applyUpdate(update)) {
+                onMessagesShown();
+            } else {
+                messageAdapter.submitList(chatViewModel.getLoadedMessages(), update.getVersion(), this::onMessagesShown);
             }
         });
 
@@ -215,6 +234,13 @@ public class ChatActivity extends AppCompatActivity {
         });
     }
 
+    private void onMessagesShown() {
+        if (scrollToNewestPending) {
+            scrollToNewestPending = false;
+            scrollToBottom();
+        }
+    }
+
     private void scrollToBottom() {
         chatRecyclerView.post(() -> {
             int messageCount = messageAdapter.getItemCount();
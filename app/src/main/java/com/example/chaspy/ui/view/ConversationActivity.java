@@ -100,13 +100,12 @@ public class ConversationActivity extends AppCompatActivity {
                         adapter.submitList(null);
                         isFirstLoad = false;
                     }
-                    adapter.submitList(conversations);
                     swipeRefreshLayout.setRefreshing(false);
                 }
             }
         });
 
-        // Observe filtered conversations
+        // The filtered list is what's shown, it is published after every change (the full list when no filter is set)
         mainViewModel.getFilteredConversations().observe(this, new Observer<List<Conversation>>() {
             @Override
             public void onChanged(List<Conversation> filteredConversations) {
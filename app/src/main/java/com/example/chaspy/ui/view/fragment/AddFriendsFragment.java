@@ -2,6 +2,8 @@ package com.example.chaspy.ui.view.fragment;
 
 import android.app.AlertDialog;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -15,23 +17,34 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.chaspy.R;
+import com.example.chaspy.data.manager.DataMigrationManager;
 import com.example.chaspy.data.model.FriendRequest;
 import com.example.chaspy.data.model.User;
+import com.example.chaspy.data.repository.FriendRequestRepository;
+import com.example.chaspy.data.service.UserSearchService;
 import com.example.chaspy.ui.adapter.FriendAddAdapter;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.Query;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
 import com.google.firebase.database.ValueEventListener;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 public class AddFriendsFragment extends Fragment implements FriendAddAdapter.OnAddFriendClickListener {
 
+    private static final long SEARCH_DEBOUNCE_MS = 300;
+    private static final int SEARCH_LIMIT = 20;
+
     private RecyclerView recyclerViewAddFriends;
     private TextView emptyViewAddFriends;
     private ArrayList<User> usersList;
@@ -41,14 +54,22 @@ public class AddFriendsFragment extends Fragment implements FriendAddAdapter.OnA
     private FirebaseAuth firebaseAuth;
     private DatabaseReference usersReference;
     private DatabaseReference friendRequestsReference;
+    private final UserSearchService userSearchService = new UserSearchService();
+    private FriendRequestRepository friendRequestRepository;
+    private final Handler searchHandler = new Handler(Looper.getMainLooper());
+    private Runnable pendingSearch = () -> { };
 
     // Current user's friends map and sent requests map
     private Map<String, Boolean> currentUserFriends = new HashMap<>();
     private Map<String, Boolean> sentFriendRequests = new HashMap<>();
     private Map<String, Boolean> receivedFriendRequests = new HashMap<>();
-    private Map<String, Boolean> blockedUsers = new HashMap<>();
-    private Map<String, String> friendRequestIdsByReceiver = new HashMap<>();
+    private Map<String, Boolean> usersBlockedByCurrentUser = new HashMap<>();
+    private Map<String, Boolean> usersBlockingCurrentUser = new HashMap<>();
     private String currentUserId;
+    // Bumped by every search so results of an older one are dropped
+    private int searchGeneration = 0;
+    // Live listeners of this view, removed in onDestroyView
+    private final Map<DatabaseReference, ValueEventListener> viewListeners = new HashMap<>();
 
     @Nullable
     @Override
@@ -85,6 +106,7 @@ public class AddFriendsFragment extends Fragment implements FriendAddAdapter.OnA
 
         // Load current user's friends, sent requests, and block list
         if (currentUserId != null) {
+            friendRequestRepository = FriendRequestRepository.getInstance(currentUserId);
             loadCurrentUserFriends();
             loadSentFriendRequests();
             loadReceivedFriendRequests();
@@ -104,7 +126,7 @@ public class AddFriendsFragment extends Fragment implements FriendAddAdapter.OnA
         if (currentUserId == null) return;
 
         DatabaseReference userFriendsRef = usersReference.child(currentUserId).child("friends");
-        userFriendsRef.addValueEventListener(new ValueEventListener() {
+        listen(userFriendsRef, new ValueEventListener() {
             @Override
             public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
                 currentUserFriends.clear();
@@ -138,46 +160,19 @@ public class AddFriendsFragment extends Fragment implements FriendAddAdapter.OnA
     private void loadSentFriendRequests() {
         if (currentUserId == null) return;
 
-        // Clear existing data
-        sentFriendRequests.clear();
-        friendRequestIdsByReceiver.clear();
-
-        // Query for requests where current user is the sender
-        friendRequestsReference.addValueEventListener(new ValueEventListener() {
-            @Override
-            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                sentFriendRequests.clear();
-                friendRequestIdsByReceiver.clear();
-
-                if (dataSnapshot.exists()) {
-                    for (DataSnapshot requestSnapshot : dataSnapshot.getChildren()) {
-                        String requestId = requestSnapshot.getKey();
-                        FriendRequest request = requestSnapshot.getValue(FriendRequest.class);
-
-                        if (
-                                request != null && currentUserId.equals(request.getSenderId())
-                                        && request.getReceiverId() != null
-                                        && "pending".equals(request.getStatus())
-                        ) {
-                            sentFriendRequests.put(request.getReceiverId(), true);
-                            // Store request ID for later cancellation
-                            friendRequestIdsByReceiver.put(request.getReceiverId(), requestId);
-                        }
-                    }
-                }
+        // Shared subscription on the requests where current user is the sender
+        friendRequestRepository.getSentRequests().observe(getViewLifecycleOwner(), requests -> {
+            sentFriendRequests.clear();
 
-                // Update adapter button states for any visible items
-                if (userAdapter != null) {
-                    userAdapter.updateButtonStates(sentFriendRequests, receivedFriendRequests);
+            for (FriendRequest request : requests) {
+                if (request.getReceiverId() != null) {
+                    sentFriendRequests.put(request.getReceiverId(), true);
                 }
             }
 
-            @Override
-            public void onCancelled(@NonNull DatabaseError databaseError) {
-                if (getContext() != null) {
-                    Toast.makeText(getContext(), "Error loading sent friend requests: " + databaseError.getMessage(),
-                            Toast.LENGTH_SHORT).show();
-                }
+            // Update adapter button states for any visible items
+            if (userAdapter != null) {
+                userAdapter.updateButtonStates(sentFriendRequests, receivedFriendRequests);
             }
         });
     }
@@ -188,41 +183,26 @@ public class AddFriendsFragment extends Fragment implements FriendAddAdapter.OnA
     private void loadReceivedFriendRequests() {
         if (currentUserId == null) return;
 
-        // Clear existing data
-        receivedFriendRequests.clear();
+        // Shared subscription on the requests where current user is the receiver
+        friendRequestRepository.getReceivedRequests().observe(getViewLifecycleOwner(), requests -> {
+            receivedFriendRequests.clear();
 
-        // Query for requests where current user is the receiver
-        friendRequestsReference.addValueEventListener(new ValueEventListener() {
-            @Override
-            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                receivedFriendRequests.clear();
-
-                if (dataSnapshot.exists()) {
-                    for (DataSnapshot requestSnapshot : dataSnapshot.getChildren()) {
-                        FriendRequest request = requestSnapshot.getValue(FriendRequest.class);
-
-                        if (
-                                request != null && currentUserId.equals(request.getReceiverId())
-                                        && request.getSenderId() != null
-                                        && "pending".equals(request.getStatus())) {
-                            receivedFriendRequests.put(request.getSenderId(), true);
-                        }
-                    }
+            for (FriendRequest request : requests) {
+                if (request.getSenderId() != null) {
+                    receivedFriendRequests.put(request.getSenderId(), true);
                 }
-                System.out.println("Received friend requests: " + receivedFriendRequests);
+            }
 
-                // Update adapter button states for any visible items
-                if (userAdapter != null) {
-                    userAdapter.updateButtonStates(sentFriendRequests, receivedFriendRequests);
-                }
+            // Update adapter button states for any visible items
+            if (userAdapter != null) {
+                userAdapter.updateButtonStates(sentFriendRequests, receivedFriendRequests);
             }
+        });
 
-            @Override
-            public void onCancelled(@NonNull DatabaseError databaseError) {
-                if (getContext() != null) {
-                    Toast.makeText(getContext(), "Error loading received friend requests: " + databaseError.getMessage(),
-                            Toast.LENGTH_SHORT).show();
-                }
+        friendRequestRepository.getErrors().observe(getViewLifecycleOwner(), error -> {
+            if (getContext() != null) {
+                Toast.makeText(getContext(), "Error loading friend requests: " + error,
+                        Toast.LENGTH_SHORT).show();
             }
         });
     }
@@ -233,27 +213,13 @@ public class AddFriendsFragment extends Fragment implements FriendAddAdapter.OnA
     private void loadBlockedUsers() {
         if (currentUserId == null) return;
 
-        // Get users who have blocked the current user
-        Query blockListQuery = usersReference.orderByChild("block_list/" + currentUserId).equalTo(true);
-        blockListQuery.addValueEventListener(new ValueEventListener() {
+        // Get users who have blocked the current user from the blocked_by reverse index
+        DatabaseReference blockedByRef = FirebaseDatabase.getInstance().getReference()
+                .child("blocked_by").child(currentUserId);
+        listen(blockedByRef, new ValueEventListener() {
             @Override
             public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                // Clear existing blocked users related to other users blocking current user
-                for (String key : new ArrayList<>(blockedUsers.keySet())) {
-                    if (!key.equals(currentUserId)) {
-                        blockedUsers.remove(key);
-                    }
-                }
-
-                // Add users who have blocked the current user
-                if (dataSnapshot.exists()) {
-                    for (DataSnapshot userSnapshot : dataSnapshot.getChildren()) {
-                        String userId = userSnapshot.getKey();
-                        if (userId != null) {
-                            blockedUsers.put(userId, true);
-                        }
-                    }
-                }
+                readBlockEdges(dataSnapshot, usersBlockingCurrentUser);
             }
 
             @Override
@@ -266,21 +232,10 @@ public class AddFriendsFragment extends Fragment implements FriendAddAdapter.OnA
 
         // Get users blocked by current user
         DatabaseReference currentUserBlockListRef = usersReference.child(currentUserId).child("block_list");
-        currentUserBlockListRef.addValueEventListener(new ValueEventListener() {
+        listen(currentUserBlockListRef, new ValueEventListener() {
             @Override
             public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                // Clear existing blocked users by current user
-                blockedUsers.put(currentUserId, false);
-
-                if (dataSnapshot.exists()) {
-                    for (DataSnapshot blockSnapshot : dataSnapshot.getChildren()) {
-                        String blockedId = blockSnapshot.getKey();
-                        Boolean value = blockSnapshot.getValue(Boolean.class);
-                        if (blockedId != null && value != null && value) {
-                            blockedUsers.put(blockedId, true);
-                        }
-                    }
-                }
+                readBlockEdges(dataSnapshot, usersBlockedByCurrentUser);
             }
 
             @Override
@@ -292,6 +247,59 @@ public class AddFriendsFragment extends Fragment implements FriendAddAdapter.OnA
         });
     }
 
+    private void listen(DatabaseReference ref, ValueEventListener listener) {
+        ref.addValueEventListener(listener);
+        viewListeners.put(ref, listener);
+    }
+
+    private static void readBlockEdges(DataSnapshot dataSnapshot, Map<String, Boolean> target) {
+        target.clear();
+        for (DataSnapshot blockSnapshot : dataSnapshot.getChildren()) {
+            String userId = blockSnapshot.getKey();
+            Boolean value = blockSnapshot.getValue(Boolean.class);
+            if (userId != null && value != null && value) {
+                target.put(userId, true);
+            }
+        }
+    }
+
+    private boolean isBlocked(String userId) {
+        return usersBlockedByCurrentUser.containsKey(userId) || usersBlockingCurrentUser.containsKey(userId);
+    }
+
+    /**
+     * Drop the users whose own block list has the current user.
+     *
+     * blocked_by only has a blocker's entries once the blocker has signed in with a version that
+     * writes them, so until every blocker has migrated, each result is also checked against
+     * users/{uid}/block_list/{currentUserId}. That is one small read per result, never more than
+     * SEARCH_LIMIT. A result whose check fails is left out. The check stops once this device has
+     * run the blocked_by migration.
+     */
+    private void removeLegacyBlockers(List<User> candidates, Consumer<List<User>> onChecked) {
+        if (candidates.isEmpty()
+                || DataMigrationManager.hasRun(currentUserId, DataMigrationManager.BLOCKED_BY_REVERSE_INDEX)) {
+            onChecked.accept(candidates);
+            return;
+        }
+
+        List<Task<DataSnapshot>> checks = new ArrayList<>();
+        for (User user : candidates) {
+            checks.add(usersReference.child(user.getUid()).child("block_list").child(currentUserId).get());
+        }
+        Tasks.whenAllComplete(checks).addOnCompleteListener(done -> {
+            List<User> visibleUsers = new ArrayList<>();
+            for (int i = 0; i < candidates.size(); i++) {
+                Task<DataSnapshot> check = checks.get(i);
+                if (check.isSuccessful()
+                        && !Boolean.TRUE.equals(check.getResult().getValue(Boolean.class))) {
+                    visibleUsers.add(candidates.get(i));
+                }
+            }
+            onChecked.accept(visibleUsers);
+        });
+    }
+
     /**
      * Search for users based on the provided query
      * This method will be called from FriendsActivity when the search query changes
@@ -302,10 +310,16 @@ public class AddFriendsFragment extends Fragment implements FriendAddAdapter.OnA
         // Trim the query to remove any leading or trailing whitespace
         String trimmedQuery = (query != null) ? query.trim() : "";
 
+        // Only the last keystroke in a burst is searched
+        searchGeneration++;
+        searchHandler.removeCallbacks(pendingSearch);
+        userSearchService.cancel();
+
         // Show empty view with loading message when starting search
         if (!trimmedQuery.isEmpty()) {
             emptyViewAddFriends.setText("Searching for users...");
-            loadAllUsers(trimmedQuery);
+            pendingSearch = () -> loadMatchingUsers(trimmedQuery);
+            searchHandler.postDelayed(pendingSearch, SEARCH_DEBOUNCE_MS);
         } else {
             // Clear the list if query is empty
             usersList.clear();
@@ -316,85 +330,92 @@ public class AddFriendsFragment extends Fragment implements FriendAddAdapter.OnA
     }
 
     /**
-     * Load all users from Firebase that match the query
+     * Load the users whose name matches the query from the user_search index
      *
      * @param query The search query to filter users by
      */
-    private void loadAllUsers(String query) {
+    private void loadMatchingUsers(String query) {
         if (currentUserId == null) {
             emptyViewAddFriends.setText("You need to be logged in");
             return;
         }
 
-        usersList.clear();
-
-        String lowercaseQuery = query.toLowerCase();
-
-        usersReference.addListenerForSingleValueEvent(new ValueEventListener() {
+        userSearchService.searchUsers(query, SEARCH_LIMIT, new UserSearchService.SearchCallback() {
             @Override
-            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                usersList.clear();
-
-                for (DataSnapshot userSnapshot : dataSnapshot.getChildren()) {
-                    User user = userSnapshot.getValue(User.class);
+            public void onSuccess(List<User> users) {
+                if (!isAdded()) {
+                    return;
+                }
+                List<User> candidates = new ArrayList<>();
 
-                    // Set the UID for the user based on the key
-                    if (user != null) {
-                        String userId = userSnapshot.getKey();
-                        user.setUid(userId);
+                for (User user : users) {
+                    String userId = user.getUid();
 
-                        // Skip if user is current user
-                        if (userId.equals(currentUserId)) {
-                            continue;
-                        }
+                    // Skip if user is current user
+                    if (userId.equals(currentUserId)) {
+                        continue;
+                    }
 
-                        // Skip if user is already a friend
-                        if (currentUserFriends.containsKey(userId)) {
-                            continue;
-                        }
+                    // Skip if user is already a friend
+                    if (currentUserFriends.containsKey(userId)) {
+                        continue;
+                    }
 
-                        // Skip if user is in block list (either direction)
-                        if (blockedUsers.containsKey(userId)) {
-                            continue;
-                        }
+                    // Skip if user is in block list (either direction)
+                    if (isBlocked(userId)) {
+                        continue;
+                    }
 
-                        // Check if user's name contains the query string
-                        String firstName = user.getFirstName() != null ? user.getFirstName().toLowerCase() : "";
-                        String lastName = user.getLastName() != null ? user.getLastName().toLowerCase() : "";
-                        String fullName = (firstName + " " + lastName).toLowerCase();
+                    candidates.add(user);
+                }
 
-                        if (fullName.contains(lowercaseQuery)) {
-                            usersList.add(user);
-                        }
+                int search = searchGeneration;
+                removeLegacyBlockers(candidates, visibleUsers -> {
+                    // A newer search has started since
+                    if (!isAdded() || search != searchGeneration) {
+                        return;
                     }
-                }
+                    usersList.clear();
+                    usersList.addAll(visibleUsers);
 
-                // Update the adapter with button states before notifying data changed
-                userAdapter.updateButtonStates(sentFriendRequests, receivedFriendRequests);
+                    // Update the adapter with button states before notifying data changed
+                    userAdapter.updateButtonStates(sentFriendRequests, receivedFriendRequests);
 
-                // Update UI after search
-                userAdapter.notifyDataSetChanged();
-                updateEmptyViewVisibility();
+                    // Update UI after search
+                    userAdapter.notifyDataSetChanged();
+                    updateEmptyViewVisibility();
 
-                // If no results found, update empty view text
-                if (usersList.isEmpty()) {
-                    emptyViewAddFriends.setText("No users found matching your search");
-                }
+                    // If no results found, update empty view text
+                    if (usersList.isEmpty()) {
+                        emptyViewAddFriends.setText("No users found matching your search");
+                    }
+                });
             }
 
             @Override
-            public void onCancelled(@NonNull DatabaseError databaseError) {
-                // Handle the error
-                if (getContext() != null) {
-                    Toast.makeText(getContext(), "Error searching for users: " + databaseError.getMessage(),
-                            Toast.LENGTH_SHORT).show();
+            public void onFailure(String error) {
+                if (!isAdded()) {
+                    return;
                 }
+                // Handle the error
+                Toast.makeText(getContext(), "Error searching for users: " + error, Toast.LENGTH_SHORT).show();
                 emptyViewAddFriends.setText("Error searching for users");
                 updateEmptyViewVisibility();
             }
         });
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        searchHandler.removeCallbacks(pendingSearch);
+        userSearchService.cancel();
+        for (Map.Entry<DatabaseReference, ValueEventListener> entry : viewListeners.entrySet()) {
+            entry.getKey().removeEventListener(entry.getValue());
+        }
+        viewListeners.clear();
+    }
+
     /**
      * Update the visibility of empty view based on whether there are items in the list
      */
@@ -421,48 +442,53 @@ public class AddFriendsFragment extends Fragment implements FriendAddAdapter.OnA
             return;
         }
 
-        // Get a reference to generate a new unique key for the friend request
-        DatabaseReference newRequestRef = friendRequestsReference.push();
-        String requestId = newRequestRef.getKey();
-
-        if (requestId == null) {
-            if (getContext() != null) {
-                Toast.makeText(getContext(), "Error creating request ID", Toast.LENGTH_SHORT).show();
-            }
-            return;
-        }
-
-        // Create the friend request with only the required fields
-        Map<String, Object> friendRequest = new HashMap<>();
-        friendRequest.put("sender_id", currentUserId);
-        friendRequest.put("receiver_id", receiverId);
-        friendRequest.put("status", "pending");
+        // One key per sender and receiver, so sending twice can't create a duplicate
+        String requestId = FriendRequestRepository.requestId(currentUserId, receiverId);
 
-        // Save the friend request to Firebase
-        newRequestRef.setValue(friendRequest)
-                .addOnSuccessListener(aVoid -> {
-                    // Update local map of sent requests
-                    sentFriendRequests.put(receiverId, true);
-                    friendRequestIdsByReceiver.put(receiverId, requestId);
+        friendRequestsReference.child(requestId).runTransaction(new Transaction.Handler() {
+            @NonNull
+            @Override
+            public Transaction.Result doTransaction(@NonNull MutableData currentData) {
+                // Keep a pending request as it is; one that was answered can be sent again
+                if ("pending".equals(currentData.child("status").getValue(String.class))) {
+                    return Transaction.abort();
+                }
 
-                    // Update button states in adapter
-                    if (userAdapter != null) {
-                        userAdapter.updateButtonStates(sentFriendRequests, receivedFriendRequests);
-                    }
+                // Create the friend request with only the required fields
+                Map<String, Object> friendRequest = new HashMap<>();
+                friendRequest.put("sender_id", currentUserId);
+                friendRequest.put("receiver_id", receiverId);
+                friendRequest.put("status", "pending");
+                currentData.setValue(friendRequest);
+                return Transaction.success(currentData);
+            }
 
-                    // Show success message
-                    if (getContext() != null) {
-                        Toast.makeText(getContext(), "Friend request sent", Toast.LENGTH_SHORT).show();
-                    }
-                })
-                .addOnFailureListener(e -> {
+            @Override
+            public void onComplete(DatabaseError error, boolean committed, DataSnapshot currentData) {
+                if (error != null) {
                     // Show error message
                     if (getContext() != null) {
-                        Toast.makeText(getContext(), "Failed to send request: " + e.getMessage(),
+                        Toast.makeText(getContext(), "Failed to send request: " + error.getMessage(),
                                 Toast.LENGTH_SHORT).show();
                     }
-                    e.printStackTrace();
-                });
+                    return;
+                }
+
+                // Update local map of sent requests
+                sentFriendRequests.put(receiverId, true);
+
+                // Update button states in adapter
+                if (userAdapter != null) {
+                    userAdapter.updateButtonStates(sentFriendRequests, receivedFriendRequests);
+                }
+
+                // Show success message
+                if (getContext() != null) {
+                    Toast.makeText(getContext(), committed ? "Friend request sent" : "Friend request already sent",
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
     }
 
     /**
@@ -478,21 +504,11 @@ public class AddFriendsFragment extends Fragment implements FriendAddAdapter.OnA
             return;
         }
 
-        // Get the request ID from our map
-        String requestId = friendRequestIdsByReceiver.get(receiverId);
-        if (requestId == null) {
-            if (getContext() != null) {
-                Toast.makeText(getContext(), "Error: Unable to find request ID", Toast.LENGTH_SHORT).show();
-            }
-            return;
-        }
-
         // Delete the friend request from Firebase
-        friendRequestsReference.child(requestId).removeValue()
+        friendRequestsReference.child(FriendRequestRepository.requestId(currentUserId, receiverId)).removeValue()
                 .addOnSuccessListener(aVoid -> {
                     // Update local map of sent requests
                     sentFriendRequests.remove(receiverId);
-                    friendRequestIdsByReceiver.remove(receiverId);
 
                     // Update button states in adapter
                     if (userAdapter != null) {
@@ -15,20 +15,20 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.chaspy.R;
+import com.example.chaspy.data.manager.UserProfileCache;
 import com.example.chaspy.data.model.FriendRequest;
+import com.example.chaspy.data.model.UserProfile;
+import com.example.chaspy.data.repository.FriendRequestRepository;
+import com.example.chaspy.data.service.ConversationFirebaseService;
 import com.example.chaspy.ui.adapter.FriendRequestAdapter;
 import com.google.firebase.auth.FirebaseAuth;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.ValueEventListener;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 
 public class FriendRequestsFragment extends Fragment implements FriendRequestAdapter.OnRequestActionListener {
     
@@ -40,6 +40,9 @@ public class FriendRequestsFragment extends Fragment implements FriendRequestAda
     
     private FirebaseAuth firebaseAuth;
     private DatabaseReference databaseReference;
+    // Bumped by every requests emission and in onDestroyView, so sender lookups
+    // started for an earlier list are ignored
+    private int requestsGeneration = 0;
     
     @Nullable
     @Override
@@ -101,102 +104,75 @@ public class FriendRequestsFragment extends Fragment implements FriendRequestAda
         
         String currentUserId = firebaseAuth.getCurrentUser().getUid();
         Log.d(TAG, "Current User ID: " + currentUserId);
-        DatabaseReference requestsRef = databaseReference.child("friend_requests");
+        FriendRequestRepository friendRequestRepository = FriendRequestRepository.getInstance(currentUserId);
         
-        requestsRef.addValueEventListener(new ValueEventListener() {
-            @Override
-            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                Log.d(TAG, "Friend requests data changed, snapshot count: " + dataSnapshot.getChildrenCount());
-                List<FriendRequest> requests = new ArrayList<>();
-                
-                for (DataSnapshot requestSnapshot : dataSnapshot.getChildren()) {
-                    String requestId = requestSnapshot.getKey();
-                    Log.d(TAG, "Processing request ID: " + requestId);
-                    
-                    if (requestSnapshot.child("receiver_id").exists() && 
-                        requestSnapshot.child("sender_id").exists() && 
-                        requestSnapshot.child("status").exists()) {
-                        
-                        String receiverId = requestSnapshot.child("receiver_id").getValue(String.class);
-                        String senderId = requestSnapshot.child("sender_id").getValue(String.class);
-                        String status = requestSnapshot.child("status").getValue(String.class);
-                        
-                        Log.d(TAG, "Request details - Receiver: " + receiverId + ", Sender: " + 
-                              senderId + ", Status: " + status);
-                        
-                        // Only show pending requests where current user is receiver
-                        if (currentUserId.equals(receiverId) && "pending".equals(status)) {
-                            Log.d(TAG, "Found pending request for current user");
-                            FriendRequest request = new FriendRequest(requestId, senderId, receiverId, status);
-                            
-                            // Fetch sender's details
-                            loadSenderDetails(request, requests);
-                        }
-                    } else {
-                        Log.w(TAG, "Skipping malformed request: " + requestId);
-                    }
-                }
-                
-                if (requests.isEmpty()) {
-                    Log.d(TAG, "No pending friend requests found");
-                }
-                
-                // Show empty view if no requests are found immediately 
-                // (loadSenderDetails will update this again when all details are loaded)
-                updateEmptyView(requests.isEmpty());
-                showLoading(false);
+        // Pending requests where current user is receiver, shared with the add friends tab
+        friendRequestRepository.getReceivedRequests().observe(getViewLifecycleOwner(), pendingRequests -> {
+            Log.d(TAG, "Pending friend requests changed, count: " + pendingRequests.size());
+            List<FriendRequest> requests = new ArrayList<>();
+            int generation = ++requestsGeneration;
+            
+            for (FriendRequest request : pendingRequests) {
+                // Fetch sender's details
+                loadSenderDetails(request, requests, generation);
             }
             
-            @Override
-            public void onCancelled(@NonNull DatabaseError databaseError) {
-                Log.e(TAG, "Failed to load requests: " + databaseError.getMessage(), databaseError.toException());
-                Toast.makeText(getContext(), "Failed to load requests: " + databaseError.getMessage(), 
-                        Toast.LENGTH_SHORT).show();
-                updateEmptyView(true);
-                showLoading(false);
+            if (pendingRequests.isEmpty()) {
+                Log.d(TAG, "No pending friend requests found");
+                adapter.setFriendRequests(new ArrayList<>());
             }
+            
+            // Show empty view if no requests are found immediately 
+            // (loadSenderDetails will update this again when all details are loaded)
+            updateEmptyView(requests.isEmpty());
+            showLoading(false);
+        });
+        
+        friendRequestRepository.getErrors().observe(getViewLifecycleOwner(), error -> {
+            Log.e(TAG, "Failed to load requests: " + error);
+            Toast.makeText(getContext(), "Failed to load requests: " + error, Toast.LENGTH_SHORT).show();
+            updateEmptyView(true);
+            showLoading(false);
         });
     }
     
-    private void loadSenderDetails(FriendRequest request, List<FriendRequest> requestsList) {
-        DatabaseReference userRef = databaseReference.child("users").child(request.getSenderId());
+    private void loadSenderDetails(FriendRequest request, List<FriendRequest> requestsList, int generation) {
         Log.d(TAG, "Loading sender details for user ID: " + request.getSenderId());
         
-        userRef.addListenerForSingleValueEvent(new ValueEventListener() {
+        UserProfileCache.getInstance().getProfile(request.getSenderId(), new UserProfileCache.ProfileCallback() {
             @Override
-            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                if (dataSnapshot.exists()) {
-                    Log.d(TAG, "Sender user data found");
-                    String firstName = dataSnapshot.child("firstName").getValue(String.class);
-                    String lastName = dataSnapshot.child("lastName").getValue(String.class);
-                    String profilePicUrl = dataSnapshot.child("profilePicUrl").getValue(String.class);
-                    
-                    if (firstName == null) firstName = "";
-                    if (lastName == null) lastName = "";
-                    
-                    request.setSenderName(firstName + " " + lastName);
-                    request.setSenderProfilePicUrl(profilePicUrl);
-                    
-                    // Add to the list and update adapter
-                    requestsList.add(request);
-                    Log.d(TAG, "Added request to list, current size: " + requestsList.size());
+            public void onSuccess(UserProfile sender) {
+                if (generation != requestsGeneration) {
+                    // A newer list of requests has arrived since this lookup started
+                    return;
+                }
+                Log.d(TAG, "Sender user data found");
+                String firstName = sender.getFirstName() != null ? sender.getFirstName() : "";
+                String lastName = sender.getLastName() != null ? sender.getLastName() : "";
+                
+                request.setSenderName(firstName + " " + lastName);
+                request.setSenderProfilePicUrl(sender.getProfilePicUrl());
+                
+                // Add to the list and update adapter
+                requestsList.add(request);
+                Log.d(TAG, "Added request to list, current size: " + requestsList.size());
+                
+                // Update the adapter with the current list
+                if (isAdded() && getContext() != null) {
+                    adapter.setFriendRequests(new ArrayList<>(requestsList));
                     
-                    // Update the adapter with the current list
-                    if (isAdded() && getContext() != null) {
-                        adapter.setFriendRequests(new ArrayList<>(requestsList));
-                        
-                        // Update empty view after all requests are processed
-                        updateEmptyView(requestsList.isEmpty());
-                        showLoading(false);
-                    }
-                } else {
-                    Log.w(TAG, "Sender user data not found for ID: " + request.getSenderId());
+                    // Update empty view after all requests are processed
+                    updateEmptyView(requestsList.isEmpty());
+                    showLoading(false);
                 }
             }
             
             @Override
-            public void onCancelled(@NonNull DatabaseError databaseError) {
-                Log.e(TAG, "Failed to load sender details: " + databaseError.getMessage());
+            public void onError(String error) {
+                if (generation != requestsGeneration) {
+                    return;
+                }
+                Log.e(TAG, "Failed to load sender details for " + request.getSenderId() + ": " + error);
                 if (getContext() != null) {
                     Toast.makeText(getContext(), "Failed to load sender details", Toast.LENGTH_SHORT).show();
                 }
@@ -205,6 +181,12 @@ public class FriendRequestsFragment extends Fragment implements FriendRequestAda
         });
     }
     
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        requestsGeneration++;
+    }
+    
     private void updateEmptyView(boolean isEmpty) {
         if (isEmpty) {
             Log.d(TAG, "Showing empty view");
@@ -226,10 +208,8 @@ public class FriendRequestsFragment extends Fragment implements FriendRequestAda
     public void searchRequests(String query) {
         Log.d(TAG, "Searching friend requests with query: " + query);
         if (adapter != null) {
-            adapter.filterRequests(query);
-            
-            // Update empty view based on filtered results
-            updateEmptyView(adapter.getFriendRequests().isEmpty());
+            // Update empty view once the background search has filtered the list
+            adapter.filterRequests(query, () -> updateEmptyView(adapter.getFriendRequests().isEmpty()));
         }
     }
     
@@ -240,113 +220,33 @@ public class FriendRequestsFragment extends Fragment implements FriendRequestAda
         String requestId = request.getRequestId();
         String senderId = request.getSenderId();
         
-        // Update request status in database
-        DatabaseReference requestRef = databaseReference.child("friend_requests").child(requestId);
-        requestRef.child("status").setValue("accepted");
-        
-        // Add to friends lists for both users
-        DatabaseReference senderFriendsRef = databaseReference.child("users").child(senderId).child("friends");
-        senderFriendsRef.child(currentUserId).setValue(true);
+        // Removing the request, both friends lists and the conversation stub in one atomic write;
+        // answered requests aren't kept, so friend_requests only holds pending ones
+        Map<String, Object> updates = new HashMap<>();
+        updates.put("friend_requests/" + requestId, null);
+        updates.put("users/" + senderId + "/friends/" + currentUserId, true);
+        updates.put("users/" + currentUserId + "/friends/" + senderId, true);
+        ConversationFirebaseService.putConversationStub(updates, currentUserId, senderId);
         
-        DatabaseReference receiverFriendsRef = databaseReference.child("users").child(currentUserId).child("friends");
-        receiverFriendsRef.child(senderId).setValue(true)
+        databaseReference.updateChildren(updates)
             .addOnSuccessListener(aVoid -> {
+                // The received requests observer drops the row once the request is gone
                 Toast.makeText(getContext(), "Friend request accepted", Toast.LENGTH_SHORT).show();
-                adapter.removeFriendRequest(position);
-                updateEmptyView(adapter.getFriendRequests().isEmpty());
-                
-                // Check if a conversation already exists and create a new one if needed
-                checkAndCreateConversation(currentUserId, senderId);
             })
             .addOnFailureListener(e -> Toast.makeText(getContext(), 
                     "Failed to accept request: " + e.getMessage(), Toast.LENGTH_SHORT).show());
     }
     
-    /**
-     * Check if a conversation already exists between two users, and create a new one if not
-     * @param currentUserId The current user's ID
-     * @param otherUserId The other user's ID
-     */
-    private void checkAndCreateConversation(String currentUserId, String otherUserId) {
-        DatabaseReference conversationsRef = databaseReference.child("conversations");
-        
-        conversationsRef.addListenerForSingleValueEvent(new ValueEventListener() {
-            @Override
-            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                boolean conversationExists = false;
-                
-                // Check all existing conversations to see if these users already have one
-                for (DataSnapshot conversationSnapshot : dataSnapshot.getChildren()) {
-                    String user1Id = conversationSnapshot.child("user1_id").getValue(String.class);
-                    String user2Id = conversationSnapshot.child("user2_id").getValue(String.class);
-                    
-                    // Check if these two users are already in a conversation together
-                    // A conversation exists if (user1=current & user2=other) OR (user1=other & user2=current)
-                    if ((currentUserId.equals(user1Id) && otherUserId.equals(user2Id)) || 
-                        (currentUserId.equals(user2Id) && otherUserId.equals(user1Id))) {
-                        conversationExists = true;
-                        Log.d(TAG, "Conversation already exists between users");
-                        break;
-                    }
-                }
-                
-                // If no conversation exists, create a new one
-                if (!conversationExists) {
-                    createNewConversation(currentUserId, otherUserId);
-                }
-            }
-            
-            @Override
-            public void onCancelled(@NonNull DatabaseError databaseError) {
-                Log.e(TAG, "Failed to check for existing conversations: " + databaseError.getMessage());
-            }
-        });
-    }
-    
-    /**
-     * Create a new conversation between two users
-     * @param user1Id The first user's ID
-     * @param user2Id The second user's ID
-     */
-    private void createNewConversation(String user1Id, String user2Id) {
-        // Generate a unique ID for the new conversation
-        String conversationId = UUID.randomUUID().toString().replace("-", "");
-        
-        // Get current timestamp in milliseconds
-        String currentTimeMillis = String.valueOf(System.currentTimeMillis());
-        
-        // Create conversation data object
-        Map<String, Object> conversationData = new HashMap<>();
-        conversationData.put("user1_id", user1Id);
-        conversationData.put("user2_id", user2Id);
-        conversationData.put("last_message", "");
-        conversationData.put("last_message_time", currentTimeMillis);
-        
-        // Add the conversation to the database
-        DatabaseReference conversationsRef = databaseReference.child("conversations").child(conversationId);
-        conversationsRef.setValue(conversationData)
-            .addOnSuccessListener(aVoid -> {
-                Log.d(TAG, "New conversation created successfully");
-                // Initialize empty messages collection for this conversation
-                databaseReference.child("messages").child(conversationId).setValue(new HashMap<>());
-            })
-            .addOnFailureListener(e -> {
-                Log.e(TAG, "Failed to create new conversation: " + e.getMessage());
-            });
-    }
-    
     @Override
     public void onRejectRequest(FriendRequest request, int position) {
         // Reject friend request logic
         String requestId = request.getRequestId();
         
-        // Update request status in database
-        DatabaseReference requestRef = databaseReference.child("friend_requests").child(requestId);
-        requestRef.child("status").setValue("rejected")
+        // Remove the request from the database, answered requests aren't kept
+        databaseReference.child("friend_requests").child(requestId).removeValue()
             .addOnSuccessListener(aVoid -> {
+                // The received requests observer drops the row once the request is gone
                 Toast.makeText(getContext(), "Friend request rejected", Toast.LENGTH_SHORT).show();
-                adapter.removeFriendRequest(position);
-                updateEmptyView(adapter.getFriendRequests().isEmpty());
             })
             .addOnFailureListener(e -> Toast.makeText(getContext(), 
                     "Failed to reject request: " + e.getMessage(), Toast.LENGTH_SHORT).show());
@@ -18,11 +18,14 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.chaspy.R;
+import com.example.chaspy.data.manager.UserProfileCache;
 import com.example.chaspy.data.model.FriendItem;
-import com.example.chaspy.data.model.User;
+import com.example.chaspy.data.model.UserProfile;
+import com.example.chaspy.data.service.ConversationFirebaseService;
 import com.example.chaspy.ui.adapter.FriendsAdapter;
 import com.example.chaspy.ui.view.ChatActivity;
 import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.database.ChildEventListener;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
@@ -31,8 +34,10 @@ import com.google.firebase.database.ValueEventListener;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class FriendsListFragment extends Fragment implements FriendsAdapter.OnFriendClickListener {
     private static final String TAG = "FriendsListFragment";
@@ -44,7 +49,18 @@ public class FriendsListFragment extends Fragment implements FriendsAdapter.OnFr
     
     private FirebaseAuth auth;
     private DatabaseReference databaseRef;
+    private ConversationFirebaseService conversationService;
     private List<FriendItem> currentFriendsList;
+    private DatabaseReference friendsRef;
+    private ChildEventListener friendsListener;
+    private final Set<String> friendIds = new HashSet<>();
+    // Profile watchers by friend UID, so later profile changes update that friend's row
+    private final Map<String, UserProfileCache.ProfileCallback> profileWatchers = new HashMap<>();
+    private int pendingProfiles = 0;
+    private boolean initialFriendsReceived = false;
+    private boolean initialFriendsShown = false;
+    // Bumped in onDestroyView, so profile lookups started for an earlier view are ignored
+    private int viewGeneration = 0;
     
     @Nullable
     @Override
@@ -59,6 +75,7 @@ public class FriendsListFragment extends Fragment implements FriendsAdapter.OnFr
         // Initialize Firebase components
         auth = FirebaseAuth.getInstance();
         databaseRef = FirebaseDatabase.getInstance().getReference();
+        conversationService = new ConversationFirebaseService();
         currentFriendsList = new ArrayList<>();
         
         // Initialize UI components
@@ -98,119 +115,189 @@ public class FriendsListFragment extends Fragment implements FriendsAdapter.OnFr
         // Show progress
         progressBarFriends.setVisibility(View.VISIBLE);
         
-        // Reference to current user's friends
-        DatabaseReference userRef = databaseRef.child("users").child(currentUserId);
-        
-        userRef.addValueEventListener(new ValueEventListener() {
+        // Only the friends subtree is watched, so profile or block list edits don't reload the list,
+        // and each added or removed friend touches a single row
+        friendsRef = databaseRef.child("users").child(currentUserId).child("friends");
+        friendsListener = new ChildEventListener() {
             @Override
-            public void onDataChange(@NonNull DataSnapshot snapshot) {
-                Log.d(TAG, "User data snapshot received: " + snapshot.exists());
-                
-                if (snapshot.exists()) {
-                    // Get the friends map directly from the snapshot
-                    DataSnapshot friendsSnapshot = snapshot.child("friends");
-                    Log.d(TAG, "Friends snapshot exists: " + friendsSnapshot.exists() + 
-                              ", has children: " + friendsSnapshot.hasChildren() + 
-                              ", children count: " + friendsSnapshot.getChildrenCount());
-                    
-                    if (friendsSnapshot.exists() && friendsSnapshot.hasChildren()) {
-                        Map<String, Object> friendsMap = (Map<String, Object>) friendsSnapshot.getValue();
-                        fetchFriendsData(friendsMap);
-                    } else {
-                        // No friends found
-                        Log.d(TAG, "No friends found for user");
-                        progressBarFriends.setVisibility(View.GONE);
-                        recyclerViewFriends.setVisibility(View.GONE);
-                        tvEmptyFriendsList.setVisibility(View.VISIBLE);
-                    }
-                } else {
-                    // User data not found
-                    Log.e(TAG, "User data not found");
-                    progressBarFriends.setVisibility(View.GONE);
-                    tvEmptyFriendsList.setVisibility(View.VISIBLE);
-                }
+            public void onChildAdded(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+                onFriendEdge(snapshot);
+            }
+
+            @Override
+            public void onChildChanged(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+                onFriendEdge(snapshot);
+            }
+
+            @Override
+            public void onChildRemoved(@NonNull DataSnapshot snapshot) {
+                removeFriendRow(snapshot.getKey());
+            }
+
+            @Override
+            public void onChildMoved(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+                // Order comes from the adapter, not from the database
             }
 
             @Override
             public void onCancelled(@NonNull DatabaseError error) {
-                Log.e(TAG, "Error fetching user data: " + error.getMessage());
+                Log.e(TAG, "Error fetching friends: " + error.getMessage());
                 progressBarFriends.setVisibility(View.GONE);
                 tvEmptyFriendsList.setVisibility(View.VISIBLE);
                 tvEmptyFriendsList.setText("Error loading friends: " + error.getMessage());
             }
+        };
+        friendsRef.addChildEventListener(friendsListener);
+        
+        // A value event on the same location fires after all the initial onChildAdded calls,
+        // and is answered from the data the child listener already downloaded
+        friendsRef.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot snapshot) {
+                if (getView() == null) {
+                    return;
+                }
+                Log.d(TAG, "Initial friends received: " + snapshot.getChildrenCount());
+                initialFriendsReceived = true;
+                showInitialFriendsIfReady();
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                // Reported by the child listener
+            }
         });
     }
     
-    private void fetchFriendsData(Map<String, Object> friendsMap) {
-        List<FriendItem> friendsList = new ArrayList<>();
-        DatabaseReference usersRef = databaseRef.child("users");
-        
-        Log.d(TAG, "Fetching data for " + friendsMap.size() + " friends");
-        
-        // Counter to track loaded friends
-        final int[] friendsToLoad = {friendsMap.size()};
-        final int[] loadedFriends = {0};
+    private void onFriendEdge(DataSnapshot snapshot) {
+        String friendId = snapshot.getKey();
+        if (!Boolean.TRUE.equals(snapshot.getValue(Boolean.class))) {
+            removeFriendRow(friendId);
+            return;
+        }
+        if (!friendIds.add(friendId)) {
+            return;
+        }
         
-        for (String friendId : friendsMap.keySet()) {
-            Log.d(TAG, "Fetching data for friend: " + friendId);
-            
-            usersRef.child(friendId).addListenerForSingleValueEvent(new ValueEventListener() {
-                @Override
-                public void onDataChange(@NonNull DataSnapshot snapshot) {
-                    Log.d(TAG, "Friend data received for " + friendId + ", exists: " + snapshot.exists());
-                    
-                    if (snapshot.exists()) {
-                        // Extract individual fields directly from the snapshot
-                        String firstName = snapshot.child("firstName").getValue(String.class);
-                        String lastName = snapshot.child("lastName").getValue(String.class);
-                        String fullName = firstName + " " + lastName;
-                        String email = snapshot.child("email").getValue(String.class);
-                        String profilePicUrl = snapshot.child("profilePicUrl").getValue(String.class);
-                        Boolean isActive = snapshot.child("isActive").getValue(Boolean.class);
-                        
-                        Log.d(TAG, "Friend data: name=" + fullName + ", email=" + email + 
-                                  ", profilePic=" + (profilePicUrl != null) + 
-                                  ", isActive=" + isActive);
-                        
-                        FriendItem friend = new FriendItem(
-                                friendId,
-                                fullName,
-                                email,
-                                profilePicUrl,
-                                isActive != null && isActive
-                        );
-                        friendsList.add(friend);
-                        Log.d(TAG, "Added friend to list: " + fullName);
-                    } else {
-                        Log.e(TAG, "Friend data not found for ID: " + friendId);
-                    }
-                    
-                    loadedFriends[0]++;
-                    
-                    // Check if all friends are loaded
-                    if (loadedFriends[0] >= friendsToLoad[0]) {
-                        Log.d(TAG, "All friends loaded. Total: " + friendsList.size());
-                        currentFriendsList = friendsList;
-                        updateUI(friendsList);
-                    }
+        // Fetch details only for the friend that was added, then follow their profile changes
+        pendingProfiles++;
+        int generation = viewGeneration;
+        UserProfileCache.ProfileCallback watcher = new UserProfileCache.ProfileCallback() {
+            private boolean first = true;
+
+            @Override
+            public void onSuccess(UserProfile profile) {
+                if (generation != viewGeneration || !isAdded() || getView() == null) {
+                    return;
+                }
+                FriendItem friend = new FriendItem(profile.getUid(), profile.getFullName(),
+                        profile.getEmail(), profile.getProfilePicUrl(), profile.isActive());
+                if (!first) {
+                    updateFriendRow(friend);
+                    return;
                 }
+                first = false;
+                pendingProfiles--;
+                // Unfriended while the profile was loading
+                if (friendIds.contains(friendId)) {
+                    addFriendRow(friend);
+                }
+                showInitialFriendsIfReady();
+            }
 
-                @Override
-                public void onCancelled(@NonNull DatabaseError error) {
-                    Log.e(TAG, "Error loading friend data for " + friendId + ": " + error.getMessage());
-                    loadedFriends[0]++;
-                    
-                    // Check if all attempts to load friends are completed
-                    if (loadedFriends[0] >= friendsToLoad[0]) {
-                        Log.d(TAG, "All friend loading attempts completed. Successful loads: " + friendsList.size());
-                        currentFriendsList = friendsList;
-                        updateUI(friendsList);
-                    }
+            @Override
+            public void onError(String error) {
+                if (generation != viewGeneration || !isAdded() || getView() == null || !first) {
+                    return;
                 }
-            });
+                first = false;
+                pendingProfiles--;
+                Log.e(TAG, "Error loading friend data for " + friendId + ": " + error);
+                showInitialFriendsIfReady();
+            }
+        };
+        profileWatchers.put(friendId, watcher);
+        UserProfileCache.getInstance().watchProfile(friendId, watcher);
+    }
+    
+    private void addFriendRow(FriendItem friend) {
+        currentFriendsList.add(friend);
+        if (initialFriendsShown) {
+            adapter.addFriend(friend);
+            updateEmptyState();
         }
     }
     
+    private void updateFriendRow(FriendItem friend) {
+        for (int i = 0; i < currentFriendsList.size(); i++) {
+            if (currentFriendsList.get(i).getUid().equals(friend.getUid())) {
+                currentFriendsList.set(i, friend);
+                if (initialFriendsShown) {
+                    adapter.updateFriend(friend);
+                }
+                return;
+            }
+        }
+    }
+    
+    private void removeFriendRow(String friendId) {
+        if (!friendIds.remove(friendId)) {
+            return;
+        }
+        UserProfileCache.ProfileCallback watcher = profileWatchers.remove(friendId);
+        if (watcher != null) {
+            UserProfileCache.getInstance().unwatchProfile(friendId, watcher);
+        }
+        for (int i = 0; i < currentFriendsList.size(); i++) {
+            if (currentFriendsList.get(i).getUid().equals(friendId)) {
+                currentFriendsList.remove(i);
+                break;
+            }
+        }
+        if (initialFriendsShown) {
+            adapter.removeFriend(friendId);
+            updateEmptyState();
+        }
+    }
+    
+    // The first screen is shown in one go once every initial friend's profile has loaded
+    private void showInitialFriendsIfReady() {
+        if (initialFriendsShown || !initialFriendsReceived || pendingProfiles > 0) {
+            return;
+        }
+        initialFriendsShown = true;
+        Log.d(TAG, "All friends loaded. Total: " + currentFriendsList.size());
+        updateUI(currentFriendsList);
+    }
+    
+    private void updateEmptyState() {
+        boolean isEmpty = adapter.getFriendCount() == 0;
+        recyclerViewFriends.setVisibility(isEmpty ? View.GONE : View.VISIBLE);
+        tvEmptyFriendsList.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
+        if (isEmpty) {
+            tvEmptyFriendsList.setText("You don't have any friends yet");
+        }
+    }
+    
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (friendsRef != null && friendsListener != null) {
+            friendsRef.removeEventListener(friendsListener);
+        }
+        for (Map.Entry<String, UserProfileCache.ProfileCallback> watcher : profileWatchers.entrySet()) {
+            UserProfileCache.getInstance().unwatchProfile(watcher.getKey(), watcher.getValue());
+        }
+        profileWatchers.clear();
+        
+        // The next view loads the friends again from scratch
+        viewGeneration++;
+        friendIds.clear();
+        pendingProfiles = 0;
+        initialFriendsReceived = false;
+        initialFriendsShown = false;
+    }
+    
     private void updateUI(List<FriendItem> friendsList) {
         progressBarFriends.setVisibility(View.GONE);
         
@@ -254,11 +341,11 @@ public class FriendsListFragment extends Fragment implements FriendsAdapter.OnFr
             return;
         }
         
-        // Use the adapter's filter
-        adapter.getFilter().filter(query);
-        
-        // Update UI based on filter results
-        // We'll let the adapter's filter notify data set changed
+        // Search runs off the main thread; a newer query cancels this one
+        adapter.filter(query, () -> {
+            recyclerViewFriends.setVisibility(View.VISIBLE);
+            tvEmptyFriendsList.setVisibility(View.GONE);
+        });
     }
     
     @Override
@@ -281,32 +368,13 @@ public class FriendsListFragment extends Fragment implements FriendsAdapter.OnFr
     }
     
     private void findOrCreateConversation(String currentUserId, String friendId, FriendItem friend) {
-        // Check conversations in Firebase to see if one already exists between these users
-        DatabaseReference conversationsRef = FirebaseDatabase.getInstance().getReference("conversations");
-        
-        conversationsRef.addListenerForSingleValueEvent(new ValueEventListener() {
+        // Look the conversation up by the pair of user IDs
+        conversationService.findConversationWith(currentUserId, friendId, new ConversationFirebaseService.ConversationIdCallback() {
             @Override
-            public void onDataChange(@NonNull DataSnapshot snapshot) {
-                String existingConversationId = null;
-                
-                // Look for an existing conversation between these two users
-                for (DataSnapshot conversationSnap : snapshot.getChildren()) {
-                    String conversationId = conversationSnap.getKey();
-                    String user1Id = conversationSnap.child("user1_id").getValue(String.class);
-                    String user2Id = conversationSnap.child("user2_id").getValue(String.class);
-                    System.out.println();
-                    // Check if this conversation is between the current user and the selected friend
-                    // Need to check both possibilities: (currentUser=user1 & friend=user2) OR (currentUser=user2 & friend=user1)
-                    if ((currentUserId.equals(user1Id) && friendId.equals(user2Id)) || 
-                        (currentUserId.equals(user2Id) && friendId.equals(user1Id))) {
-                        existingConversationId = conversationId;
-                        Log.d(TAG, "Found existing conversation: " + existingConversationId);
-                        break;
-                    }
-                }
-                
+            public void onSuccess(String existingConversationId) {
                 if (existingConversationId != null) {
                     // Existing conversation found, navigate to ChatActivity
+                    Log.d(TAG, "Found existing conversation: " + existingConversationId);
                     navigateToChatActivity(existingConversationId, friend);
                 } else {
                     // No existing conversation, create a new one
@@ -316,45 +384,30 @@ public class FriendsListFragment extends Fragment implements FriendsAdapter.OnFr
             }
             
             @Override
-            public void onCancelled(@NonNull DatabaseError error) {
+            public void onFailure(String error) {
                 progressBarFriends.setVisibility(View.GONE);
-                Toast.makeText(getContext(), "Error: " + error.getMessage(), Toast.LENGTH_SHORT).show();
-                Log.e(TAG, "Error checking conversations: " + error.getMessage());
+                Toast.makeText(getContext(), "Error: " + error, Toast.LENGTH_SHORT).show();
+                Log.e(TAG, "Error checking conversations: " + error);
             }
         });
     }
     
     private void createNewConversation(String currentUserId, String friendId, FriendItem friend) {
-        DatabaseReference conversationsRef = FirebaseDatabase.getInstance().getReference("conversations");
-        
-        // Generate a new conversation ID
-        String newConversationId = conversationsRef.push().getKey();
-        
-        if (newConversationId != null) {
-            // Create conversation data
-            Map<String, Object> conversationData = new HashMap<>();
-            conversationData.put("user1_id", currentUserId);
-            conversationData.put("user2_id", friendId);
-            conversationData.put("last_message", ""); // No messages yet
-            conversationData.put("last_message_time", String.valueOf(System.currentTimeMillis()));
+        // Writes the conversation and both users' index entries together
+        conversationService.createConversation(currentUserId, friendId, new ConversationFirebaseService.ConversationIdCallback() {
+            @Override
+            public void onSuccess(String newConversationId) {
+                // Navigate to chat activity with the new conversation
+                navigateToChatActivity(newConversationId, friend);
+            }
             
-            // Save to Firebase
-            conversationsRef.child(newConversationId).setValue(conversationData)
-                .addOnSuccessListener(aVoid -> {
-                    // Navigate to chat activity with the new conversation
-                    navigateToChatActivity(newConversationId, friend);
-                })
-                .addOnFailureListener(e -> {
-                    progressBarFriends.setVisibility(View.GONE);
-                    Toast.makeText(getContext(), "Failed to create conversation: " + e.getMessage(), 
-                                  Toast.LENGTH_SHORT).show();
-                    Log.e(TAG, "Error creating conversation: " + e.getMessage());
-                });
-        } else {
-            progressBarFriends.setVisibility(View.GONE);
-            Toast.makeText(getContext(), "Failed to generate conversation ID", Toast.LENGTH_SHORT).show();
-            Log.e(TAG, "Failed to generate conversation ID");
-        }
+            @Override
+            public void onFailure(String error) {
+                progressBarFriends.setVisibility(View.GONE);
+                Toast.makeText(getContext(), error, Toast.LENGTH_SHORT).show();
+                Log.e(TAG, "Error creating conversation: " + error);
+            }
+        });
     }
     
     private void navigateToChatActivity(String conversationId, FriendItem friend) {
@@ -398,9 +451,6 @@ public class FriendsListFragment extends Fragment implements FriendsAdapter.OnFr
         // Add loading indicator or disable UI to prevent multiple clicks
         progressBarFriends.setVisibility(View.VISIBLE);
         
-        // Store a local copy of the friend to be removed
-        final FriendItem friendToRemove = friend;
-        
         // Remove from current user's friends
         currentUserFriendsRef.removeValue()
             .addOnSuccessListener(aVoid -> {
@@ -411,30 +461,7 @@ public class FriendsListFragment extends Fragment implements FriendsAdapter.OnFr
                     .addOnSuccessListener(aVoid2 -> {
                         Log.d(TAG, "Current user removed from friend's list");
                         
-                        // First, remove from our cached list to maintain data consistency
-                        int indexToRemove = -1;
-                        for (int i = 0; i < currentFriendsList.size(); i++) {
-                            if (currentFriendsList.get(i).getUid().equals(friendId)) {
-                                indexToRemove = i;
-                                break;
-                            }
-                        }
-                        
-                        if (indexToRemove != -1) {
-                            currentFriendsList.remove(indexToRemove);
-                        }
-                        
-                        // Now update the adapter with the full current list
-                        // This is safer than trying to remove by position which may have changed
-                        if (currentFriendsList.isEmpty()) {
-                            recyclerViewFriends.setVisibility(View.GONE);
-                            tvEmptyFriendsList.setVisibility(View.VISIBLE);
-                            tvEmptyFriendsList.setText("You don't have any friends yet");
-                            adapter.setFriendsList(new ArrayList<>());
-                        } else {
-                            // Update adapter with the current list
-                            adapter.setFriendsList(new ArrayList<>(currentFriendsList));
-                        }
+                        // The row itself is removed by the friends listener
                         
                         // Hide progress indicator
                         progressBarFriends.setVisibility(View.GONE);
@@ -1,8 +1,11 @@
 package com.example.chaspy.ui.viewmodel;
 
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
-import androidx.lifecycle.ViewModel;
 
 import com.example.chaspy.data.model.Message;
 import com.example.chaspy.data.model.ScheduleMessage;
@@ -11,33 +14,49 @@ import com.example.chaspy.data.repository.ScheduleMessageRepository;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class ChatViewModel extends ViewModel {
+public class ChatViewModel extends AndroidViewModel {
     private final ChatRepository chatRepository;
     private final ScheduleMessageRepository scheduleMessageRepository;
-    private final MutableLiveData<List<Message>> messageList = new MutableLiveData<>();
+    private final MutableLiveData<MessageListUpdate> messageUpdates = new MutableLiveData<>();
     private final MutableLiveData<String> errorMessage = new MutableLiveData<>();
     private final MutableLiveData<Boolean> isLoading = new MutableLiveData<>(false);
-    private final MutableLiveData<Message> newMessageAdded = new MutableLiveData<>();
+    // ID of the newest message, when the chat should scroll down to it
+    private final MutableLiveData<Event<String>> scrollToNewest = new MutableLiveData<>();
     private final MutableLiveData<List<ScheduleMessage>> scheduledMessages = new MutableLiveData<>();
     
     private String conversationId;
     private String currentUserId;
     private String friendId;
-    private Map<String, Message> messageMap = new HashMap<>();
+    // Everything loaded so far, so the whole history survives the activity being recreated
+    private final MessageIndex loadedMessages = new MessageIndex();
+    private int messagesVersion = 0;
+    private String oldestMessageKey;
+    private boolean hasMoreOlderMessages = true;
+    private boolean isLoadingOlderMessages = false;
     
-    public ChatViewModel() {
-        chatRepository = new ChatRepository();
+    public ChatViewModel(@NonNull Application application) {
+        super(application);
+        chatRepository = new ChatRepository(application);
         scheduleMessageRepository = new ScheduleMessageRepository();
     }
     
     public void init(String conversationId, String currentUserId) {
+        if (conversationId != null && conversationId.equals(this.conversationId)
+                && currentUserId != null && currentUserId.equals(this.currentUserId)) {
+            // Recreated activity, keep the loaded history and the listener
+            return;
+        }
         this.conversationId = conversationId;
         this.currentUserId = currentUserId;
-        messageMap.clear(); // Clear existing messages when initializing
+        loadedMessages.clear(); // Clear existing messages when initializing
+        oldestMessageKey = null;
+        hasMoreOlderMessages = true;
+        isLoadingOlderMessages = false;
         loadMessages();
     }
     
@@ -45,8 +64,19 @@ public class ChatViewModel extends ViewModel {
         this.friendId = friendId;
     }
     
-    public LiveData<List<Message>> getMessages() {
-        return messageList;
+    /**
+     * Each change to the loaded messages. Single messages come with their position, so the view
+     * only inserts or rebinds that row.
+     */
+    public LiveData<MessageListUpdate> getMessageUpdates() {
+        return messageUpdates;
+    }
+    
+    /**
+     * The whole loaded history in display order, as of the latest update
+     */
+    public List<Message> getLoadedMessages() {
+        return loadedMessages.toList();
     }
     
     public LiveData<String> getError() {
@@ -57,8 +87,12 @@ public class ChatViewModel extends ViewModel {
         return isLoading;
     }
     
-    public LiveData<Message> getNewMessageAdded() {
-        return newMessageAdded;
+    /**
+     * Fires once each time the chat should scroll to its newest message: after the first load
+     * and when a message arrives or is sent. Not replayed when the activity is recreated.
+     */
+    public LiveData<Event<String>> getScrollToNewest() {
+        return scrollToNewest;
     }
     
     public LiveData<List<ScheduleMessage>> getScheduledMessages() {
@@ -73,14 +107,57 @@ public class ChatViewModel extends ViewModel {
         
         isLoading.setValue(true);
         
+        // Render whatever is cached on disk first, then fetch only what is newer
+        chatRepository.getCachedMessages(conversationId, new ChatRepository.ChatCallback<List<Message>>() {
+            @Override
+            public void onSuccess(List<Message> cachedMessages) {
+                if (cachedMessages.isEmpty()) {
+                    loadLatestPage();
+                    return;
+                }
+                
+                loadedMessages.putAll(cachedMessages);
+                oldestMessageKey = cachedMessages.get(0).getMessageId();
+                hasMoreOlderMessages = true;
+                publishMessages(true);
+                
+                // Unsent messages are not on the server yet, so they can't be the sync point
+                String highWatermark = null;
+                for (int i = cachedMessages.size() - 1; i >= 0; i--) {
+                    if (!cachedMessages.get(i).isPending()) {
+                        highWatermark = cachedMessages.get(i).getMessageId();
+                        break;
+                    }
+                }
+                
+                if (highWatermark != null) {
+                    loadMessagesAfter(highWatermark);
+                } else {
+                    loadLatestPage();
+                }
+            }
+            
+            @Override
+            public void onError(String error) {
+                loadLatestPage();
+            }
+        });
+    }
+    
+    private void loadLatestPage() {
         chatRepository.getMessages(conversationId, new ChatRepository.ChatCallback<List<Message>>() {
             @Override
             public void onSuccess(List<Message> messages) {
-                // Store messages in map first to prevent duplicates
-                for (Message message : messages) {
-                    messageMap.put(message.getMessageId(), message);
+                // The index drops duplicates
+                loadedMessages.putAll(messages);
+                
+                // Messages come back in key order, so the first one is the paging cursor
+                if (!messages.isEmpty()) {
+                    oldestMessageKey = messages.get(0).getMessageId();
                 }
-                messageList.setValue(List.copyOf(messageMap.values()));
+                hasMoreOlderMessages = messages.size() >= ChatRepository.PAGE_SIZE;
+                
+                publishMessages(true);
                 isLoading.setValue(false);
                 
                 // Start listening for new messages AFTER initial load
@@ -95,13 +172,88 @@ public class ChatViewModel extends ViewModel {
         });
     }
     
+    private void loadMessagesAfter(String highWatermark) {
+        chatRepository.getMessagesAfter(conversationId, highWatermark, new ChatRepository.ChatCallback<List<Message>>() {
+            @Override
+            public void onSuccess(List<Message> messages) {
+                if (messages.size() >= ChatRepository.PAGE_SIZE) {
+                    // Too much was missed to fill the gap; start over from the newest page
+                    // and keep only the unsent messages of the cached history
+                    List<Message> pending = new ArrayList<>();
+                    for (Message message : loadedMessages.toList()) {
+                        if (message.isPending()) {
+                            pending.add(message);
+                        }
+                    }
+                    loadedMessages.clear();
+                    loadedMessages.putAll(pending);
+                    oldestMessageKey = null;
+                    loadLatestPage();
+                    return;
+                }
+                
+                if (loadedMessages.putAll(messages)) {
+                    publishMessages(true);
+                }
+                isLoading.setValue(false);
+                
+                startMessageListener();
+            }
+            
+            @Override
+            public void onError(String error) {
+                // Keep showing the cached messages and still listen for new ones
+                errorMessage.setValue(error);
+                isLoading.setValue(false);
+                startMessageListener();
+            }
+        });
+    }
+    
+    /**
+     * Load the page of messages right before the oldest one currently shown.
+     * Called when the user scrolls towards the top of the chat.
+     */
+    public void loadOlderMessages() {
+        if (conversationId == null || oldestMessageKey == null
+                || !hasMoreOlderMessages || isLoadingOlderMessages) {
+            return;
+        }
+        
+        isLoadingOlderMessages = true;
+        
+        chatRepository.getOlderMessages(conversationId, oldestMessageKey, new ChatRepository.ChatCallback<List<Message>>() {
+            @Override
+            public void onSuccess(List<Message> messages) {
+                isLoadingOlderMessages = false;
+                hasMoreOlderMessages = messages.size() >= ChatRepository.PAGE_SIZE;
+                
+                if (messages.isEmpty()) {
+                    return;
+                }
+                oldestMessageKey = messages.get(0).getMessageId();
+                
+                // Extends the loaded history above what is shown; the view keeps its position
+                if (loadedMessages.putAll(messages)) {
+                    publishMessages(false);
+                }
+            }
+            
+            @Override
+            public void onError(String error) {
+                isLoadingOlderMessages = false;
+                errorMessage.setValue(error);
+            }
+        });
+    }
+    
     private void startMessageListener() {
         chatRepository.startMessageListener(conversationId, new ChatRepository.MessageListener() {
             @Override
             public void onNewMessage(Message message) {
-                if (message != null && !messageMap.containsKey(message.getMessageId())) {
-                    messageMap.put(message.getMessageId(), message);
-                    newMessageAdded.setValue(message);
+                // Also replaces a pending copy, e.g. one restored from the outbox and sent by OutboxWorker
+                if (message != null) {
+                    publishMessage(message, loadedMessages.put(message), true);
                 }
             }
             
@@ -118,20 +270,46 @@ public class ChatViewModel extends ViewModel {
             return;
         }
         
-        isLoading.setValue(true);
-        
-        chatRepository.sendMessage(conversationId, currentUserId, messageText, new ChatRepository.ChatCallback<Void>() {
+        Message pending = chatRepository.sendMessage(conversationId, currentUserId, friendId, messageText, new ChatRepository.ChatCallback<Message>() {
             @Override
-            public void onSuccess(Void result) {
-                isLoading.setValue(false);
+            public void onSuccess(Message delivered) {
+                // Replaces the pending copy in place
+                publishMessage(delivered, loadedMessages.put(delivered), false);
             }
             
             @Override
             public void onError(String error) {
-                errorMessage.setValue(error);
-                isLoading.setValue(false);
+                errorMessage.setValue("Message not sent yet, it will be retried: " + error);
             }
         });
+        
+        // Show the message immediately, it is marked as delivered once the server acknowledges it
+        if (pending != null) {
+            publishMessage(pending, loadedMessages.put(pending), true);
+        }
+    }
+    
+    // Tell the view the loaded history changed in bulk. The scroll event is set first, so an
+    // observer of both has it by the time the new list is applied
+    private void publishMessages(boolean scrollToNewestMessage) {
+        requestScroll(scrollToNewestMessage);
+        messageUpdates.setValue(MessageListUpdate.bulk(++messagesVersion));
+    }
+    
+    // Tell the view where a single message went, if the index changed
+    private void publishMessage(Message message, MessageIndex.Placement placement, boolean scrollToNewestMessage) {
+        if (placement == null) {
+            return;
+        }
+        requestScroll(scrollToNewestMessage);
+        messageUpdates.setValue(MessageListUpdate.single(++messagesVersion, message, placement));
+    }
+    
+    private void requestScroll(boolean scrollToNewestMessage) {
+        Message newest = loadedMessages.newest();
+        if (scrollToNewestMessage && newest != null) {
+            scrollToNewest.setValue(new Event<>(newest.getMessageId()));
+        }
     }
     
     public void loadScheduledMessages() {
@@ -245,7 +423,7 @@ public class ChatViewModel extends ViewModel {
         super.onCleared();
         // Clean up resources
         chatRepository.stopMessageListener();
-        messageMap.clear();
+        loadedMessages.clear();
     }
 }
 
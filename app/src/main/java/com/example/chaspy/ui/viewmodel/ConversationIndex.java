@@ -0,0 +1,76 @@
+package com.example.chaspy.ui.viewmodel;
+
+import com.example.chaspy.data.model.Conversation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The inbox kept in order (newest message first) and keyed by conversation ID.
+ * Replacing a conversation that received a message is a remove and an insert in the
+ * ordered set, O(log n), instead of re-sorting the whole inbox.
+ *
+ * Conversations must not have their last message time changed while they are in the index;
+ * put a new copy instead.
+ */
+class ConversationIndex {
+    private static final Comparator<Conversation> NEWEST_FIRST = (c1, c2) -> {
+        int byTime = Long.compare(c2.getLastMessageTimeMillis(), c1.getLastMessageTimeMillis());
+        if (byTime != 0) {
+            return byTime;
+        }
+        return c1.getConversationId().compareTo(c2.getConversationId());
+    };
+
+    private final TreeSet<Conversation> ordered = new TreeSet<>(NEWEST_FIRST);
+    private final Map<String, Conversation> byId = new HashMap<>();
+    // Rebuilt lazily, so several updates in a row only copy the inbox once
+    private List<Conversation> snapshot = Collections.emptyList();
+    private boolean snapshotStale = false;
+
+    void setAll(List<Conversation> conversations) {
+        ordered.clear();
+        byId.clear();
+        for (Conversation conversation : conversations) {
+            put(conversation);
+        }
+        snapshotStale = true;
+    }
+
+    /**
+     * Insert a conversation or replace the one with the same ID, moving it to its new position.
+     */
+    void put(Conversation conversation) {
+        Conversation previous = byId.put(conversation.getConversationId(), conversation);
+        if (previous != null) {
+            ordered.remove(previous);
+        }
+        ordered.add(conversation);
+        snapshotStale = true;
+    }
+
+    Conversation newest() {
+        return ordered.isEmpty() ? null : ordered.first();
+    }
+
+    boolean isEmpty() {
+        return ordered.isEmpty();
+    }
+
+    /**
+     * The conversations in display order. The returned list is not modified afterwards,
+     * so it can be handed straight to ListAdapter.submitList.
+     */
+    List<Conversation> toList() {
+        if (snapshotStale) {
+            snapshot = Collections.unmodifiableList(new ArrayList<>(ordered));
+            snapshotStale = false;
+        }
+        return snapshot;
+    }
+}
@@ -6,10 +6,9 @@ import androidx.lifecycle.ViewModel;
 
 import com.example.chaspy.data.model.Conversation;
 import com.example.chaspy.data.repository.ConversationRepository;
+import com.example.chaspy.data.search.SearchIndex;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 public class ConversationViewModel extends ViewModel {
@@ -19,7 +18,9 @@ public class ConversationViewModel extends ViewModel {
     private MutableLiveData<String> errorLiveData;
     private ConversationRepository conversationRepository;
     private String currentUserId;
-    private List<Conversation> currentConversations;
+    private final ConversationIndex conversationIndex = new ConversationIndex();
+    private final SearchIndex<Conversation> searchIndex = new SearchIndex<>(Conversation::getFriendUsername);
+    private boolean searchItemsStale = true;
     private boolean isInitialLoadComplete = false;
     private String currentQuery = "";
 
@@ -28,7 +29,6 @@ public class ConversationViewModel extends ViewModel {
         filteredConversationsLiveData = new MutableLiveData<>();
         errorLiveData = new MutableLiveData<>();
         conversationRepository = new ConversationRepository();
-        currentConversations = new ArrayList<>();
     }
 
     public LiveData<List<Conversation>> getConversations() {
@@ -60,16 +60,8 @@ public class ConversationViewModel extends ViewModel {
                     }
                 }
                 
-                currentConversations = new ArrayList<>(filteredConversations);
-                sortConversations();
-                conversationsLiveData.setValue(currentConversations);
-                
-                // Apply any existing filter
-                if (!currentQuery.isEmpty()) {
-                    applyFilter(currentQuery);
-                } else {
-                    filteredConversationsLiveData.setValue(currentConversations);
-                }
+                conversationIndex.setAll(filteredConversations);
+                publishConversations();
                 
                 // Start listening for message updates only after initial load
                 // and only if we haven't done so already
@@ -87,53 +79,37 @@ public class ConversationViewModel extends ViewModel {
     }
     
     public void filterConversations(String query) {
-        currentQuery = query != null ? query.toLowerCase().trim() : "";
+        currentQuery = query != null ? query.trim() : "";
         applyFilter(currentQuery);
     }
     
     private void applyFilter(String query) {
         if (query.isEmpty()) {
             // If query is empty, show all conversations
-            filteredConversationsLiveData.setValue(currentConversations);
+            searchIndex.cancel();
+            filteredConversationsLiveData.setValue(conversationIndex.toList());
             return;
         }
         
-        List<Conversation> filteredList = new ArrayList<>();
-        
-        // Filter conversations based on username containing the query
-        for (Conversation conversation : currentConversations) {
-            String username = conversation.getFriendUsername().toLowerCase();
-            if (username.contains(query)) {
-                filteredList.add(conversation);
-            }
+        // Only re-index when the inbox changed since the last search
+        if (searchItemsStale) {
+            searchIndex.setItems(conversationIndex.toList());
+            searchItemsStale = false;
         }
         
-        filteredConversationsLiveData.setValue(filteredList);
-    }
-    
-    private void sortConversations() {
-        Collections.sort(currentConversations, new Comparator<Conversation>() {
-            @Override
-            public int compare(Conversation c1, Conversation c2) {
-                // Compare timestamps in reverse order (newest first)
-                // First try parsing as long values for more accurate comparison
-                try {
-                    long time1 = Long.parseLong(c1.getLastMessageTime());
-                    long time2 = Long.parseLong(c2.getLastMessageTime());
-                    return Long.compare(time2, time1); // Reverse order (newest first)
-                } catch (NumberFormatException e) {
-                    // Fall back to string comparison if parsing fails
-                    return c2.getLastMessageTime().compareTo(c1.getLastMessageTime());
-                }
-            }
-        });
+        // Search by the friend's name off the main thread, results keep the inbox order
+        searchIndex.search(query, filteredConversationsLiveData::setValue);
     }
     
     private void startMessageListener(String userId) {
         // Stop existing listener if any
         conversationRepository.stopMessageListener();
         
-        conversationRepository.startMessageListener(userId, new ConversationRepository.MessageUpdateCallback() {
+        // Only conversations that change after the newest one already shown are streamed
+        Conversation newest = conversationIndex.newest();
+        long sinceTimeMillis = newest == null ? 0 : newest.getLastMessageTimeMillis();
+        
+        conversationRepository.startMessageListener(userId, sinceTimeMillis, new ConversationRepository.MessageUpdateCallback() {
             @Override
             public void onConversationUpdated(Conversation updatedConversation) {
                 // Additional check for empty messages
@@ -153,42 +129,17 @@ public class ConversationViewModel extends ViewModel {
     }
     
     private void updateConversationList(Conversation updatedConversation) {
-        // Create a new list to avoid modifying the current list during iteration
-        List<Conversation> updatedList = new ArrayList<>(currentConversations.size());
-        boolean found = false;
-        
-        // First check if this conversation already exists
-        for (Conversation conversation : currentConversations) {
-            if (conversation.getConversationId().equals(updatedConversation.getConversationId())) {
-                // Add the updated conversation instead of the old one
-                updatedList.add(updatedConversation);
-                found = true;
-            } else {
-                // Keep other conversations as they are
-                updatedList.add(conversation);
-            }
-        }
-        
-        // If it's a new conversation, add it to the list
-        if (!found) {
-            updatedList.add(updatedConversation);
-        }
-        
-        // Update the current list reference
-        currentConversations = updatedList;
-        
-        // Sort conversations by timestamp (newest first)
-        sortConversations();
-        
-        // Update the LiveData with a new list to trigger observers
-        conversationsLiveData.postValue(new ArrayList<>(currentConversations));
+        // Moves the conversation to its new position without re-sorting the inbox
+        conversationIndex.put(updatedConversation);
+        publishConversations();
+    }
+    
+    private void publishConversations() {
+        searchItemsStale = true;
+        conversationsLiveData.setValue(conversationIndex.toList());
         
         // Re-apply any active filter
-        if (!currentQuery.isEmpty()) {
-            applyFilter(currentQuery);
-        } else {
-            filteredConversationsLiveData.postValue(currentConversations);
-        }
+        applyFilter(currentQuery);
     }
     
     @Override
@@ -196,5 +147,6 @@ public class ConversationViewModel extends ViewModel {
         super.onCleared();
         // Clean up the message listener when the ViewModel is cleared
         conversationRepository.stopMessageListener();
+        searchIndex.cancel();
     }
 }
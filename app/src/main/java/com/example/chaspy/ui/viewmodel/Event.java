@@ -0,0 +1,25 @@
+package com.example.chaspy.ui.viewmodel;
+
+/**
+ * A LiveData value that should be acted on once, not again when an observer re-subscribes
+ * after a configuration change.
+ */
+public class Event<T> {
+    private final T content;
+    private boolean handled = false;
+
+    public Event(T content) {
+        this.content = content;
+    }
+
+    /**
+     * The content, or null if it was already handled.
+     */
+    public T getContentIfNotHandled() {
+        if (handled) {
+            return null;
+        }
+        handled = true;
+        return content;
+    }
+}
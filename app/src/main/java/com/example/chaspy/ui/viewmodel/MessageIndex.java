@@ -0,0 +1,140 @@
+package com.example.chaspy.ui.viewmodel;
+
+import com.example.chaspy.data.model.Message;
+import com.example.chaspy.data.service.ChatFirebaseService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every message loaded for a chat, kept in display order (oldest first) and keyed by message ID.
+ * The newest page, older pages and live messages all go into the same index, so the whole
+ * loaded history can be handed to the view again, e.g. after a configuration change.
+ *
+ * Messages are placed by binary search, and put() reports where, so the view can insert that
+ * one row. New messages land at the end, which costs no shifting.
+ *
+ * Messages must not have their timestamp changed while they are in the index; put a new copy instead.
+ * A pending message that OutboxWorker delivered under a new key is replaced by the copy under
+ * that key, recognized by the key seed the two share.
+ */
+class MessageIndex {
+    // Chronological order, ties broken by push key
+    private static final Comparator<Message> OLDEST_FIRST = (m1, m2) -> {
+        int byTime = Long.compare(m1.getTimestamp(), m2.getTimestamp());
+        if (byTime != 0) {
+            return byTime;
+        }
+        return m1.getMessageId().compareTo(m2.getMessageId());
+    };
+
+    private final List<Message> ordered = new ArrayList<>();
+    private final Map<String, Message> byId = new HashMap<>();
+    // Pending messages by key seed
+    private final Map<String, Message> pendingBySeed = new HashMap<>();
+    // Rebuilt lazily, so a page of messages only copies the list once
+    private List<Message> snapshot = Collections.emptyList();
+    private boolean snapshotStale = false;
+
+    /**
+     * Insert a message or replace the one with the same ID, e.g. a pending copy with the delivered one.
+     *
+     * @return Where the message went, or null if the index did not change
+     */
+    Placement put(Message message) {
+        String seed = ChatFirebaseService.keySeed(message.getMessageId());
+        Message previous = byId.get(message.getMessageId());
+        if (previous == null) {
+            // The same message under the key it was written with
+            previous = pendingBySeed.get(seed);
+        }
+
+        int previousPosition = -1;
+        if (previous != null) {
+            if (previous.getMessageId().equals(message.getMessageId())
+                    && previous.isPending() == message.isPending()
+                    && previous.getTimestamp() == message.getTimestamp()) {
+                return null;
+            }
+            previousPosition = Collections.binarySearch(ordered, previous, OLDEST_FIRST);
+            ordered.remove(previousPosition);
+            byId.remove(previous.getMessageId());
+            pendingBySeed.remove(seed);
+        }
+
+        int position = insertionPoint(message);
+        ordered.add(position, message);
+        byId.put(message.getMessageId(), message);
+        if (message.isPending()) {
+            pendingBySeed.put(seed, message);
+        }
+        snapshotStale = true;
+        return new Placement(position, previousPosition);
+    }
+
+    /**
+     * Insert each message of a page.
+     *
+     * @return Whether the index changed
+     */
+    boolean putAll(List<Message> messages) {
+        boolean changed = false;
+        for (Message message : messages) {
+            changed |= put(message) != null;
+        }
+        return changed;
+    }
+
+    void clear() {
+        ordered.clear();
+        byId.clear();
+        pendingBySeed.clear();
+        snapshotStale = true;
+    }
+
+    /**
+     * The newest message, or null if the index is empty
+     */
+    Message newest() {
+        return ordered.isEmpty() ? null : ordered.get(ordered.size() - 1);
+    }
+
+    /**
+     * The messages in display order. The returned list is not modified afterwards,
+     * so it can be handed straight to the adapter.
+     */
+    List<Message> toList() {
+        if (snapshotStale) {
+            snapshot = Collections.unmodifiableList(new ArrayList<>(ordered));
+            snapshotStale = false;
+        }
+        return snapshot;
+    }
+
+    private int insertionPoint(Message message) {
+        // Most messages are newer than everything loaded
+        if (ordered.isEmpty() || OLDEST_FIRST.compare(ordered.get(ordered.size() - 1), message) < 0) {
+            return ordered.size();
+        }
+        int found = Collections.binarySearch(ordered, message, OLDEST_FIRST);
+        return found >= 0 ? found : -found - 1;
+    }
+
+    /**
+     * Where put() placed a message
+     */
+    static final class Placement {
+        final int position;
+        // Position of the copy it replaced before that copy was removed, or -1 if it was new
+        final int previousPosition;
+
+        Placement(int position, int previousPosition) {
+            this.position = position;
+            this.previousPosition = previousPosition;
+        }
+    }
+}
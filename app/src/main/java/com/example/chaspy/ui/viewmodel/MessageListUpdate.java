@@ -0,0 +1,62 @@
+package com.example.chaspy.ui.viewmodel;
+
+import com.example.chaspy.data.model.Message;
+
+/**
+ * One change to a chat's loaded messages. Versions count up by one per change.
+ *
+ * A single message carries where it went, so a view that has applied the previous version can
+ * patch that one row. A bulk change (a page, the cached history) only carries its version; the
+ * view then fetches the whole list with ChatViewModel.getLoadedMessages(), as it also does when
+ * it missed a version, e.g. while it was stopped or after being recreated.
+ */
+public class MessageListUpdate {
+    private final int version;
+    private final Message message;
+    private final int position;
+    private final int previousPosition;
+
+    private MessageListUpdate(int version, Message message, int position, int previousPosition) {
+        this.version = version;
+        this.message = message;
+        this.position = position;
+        this.previousPosition = previousPosition;
+    }
+
+    static MessageListUpdate bulk(int version) {
+        return new MessageListUpdate(version, null, -1, -1);
+    }
+
+    static MessageListUpdate single(int version, Message message, MessageIndex.Placement placement) {
+        return new MessageListUpdate(version, message, placement.position, placement.previousPosition);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isBulk() {
+        return message == null;
+    }
+
+    /**
+     * The inserted or replacing message, null for a bulk change
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * Position of the message once the change is applied
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Position of the copy it replaced, or -1 if the message is new
+     */
+    public int getPreviousPosition() {
+        return previousPosition;
+    }
+}
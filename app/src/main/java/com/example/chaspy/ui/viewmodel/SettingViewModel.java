@@ -8,8 +8,10 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
 
+import com.example.chaspy.data.mapper.SnapshotMapper;
 import com.example.chaspy.data.model.User;
 import com.example.chaspy.data.repository.UserRepository;
+import com.example.chaspy.data.service.FreshRead;
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.auth.FirebaseAuth;
@@ -86,9 +88,8 @@ public class SettingViewModel extends ViewModel {
             public void onDataChange(DataSnapshot snapshot) {
                 if (snapshot.exists()) {
                     try {
-                        User user = snapshot.getValue(User.class);
+                        User user = SnapshotMapper.toUser(snapshot);
                         if (user != null) {
-                            user.setUid(userId);
                             userData.setValue(user);
                         } else {
                             errorMessage.setValue("Failed to parse user data");
@@ -110,7 +111,7 @@ public class SettingViewModel extends ViewModel {
     }
     
     private void loadDefaultAvatarUrl() {
-        generalInfoRef.child("default_avatar").addListenerForSingleValueEvent(new ValueEventListener() {
+        FreshRead.once(generalInfoRef.child("default_avatar"), new ValueEventListener() {
             @Override
             public void onDataChange(DataSnapshot snapshot) {
                 String url = snapshot.getValue(String.class);
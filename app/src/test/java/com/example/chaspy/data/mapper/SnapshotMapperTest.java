@@ -0,0 +1,56 @@
+package com.example.chaspy.data.mapper;
+
+import com.example.chaspy.data.model.Message;
+import com.example.chaspy.data.model.MessageType;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * The message mapper gives the same values the per-field getValue(String.class) parsing gave,
+ * including for numbers written by older clients.
+ */
+public class SnapshotMapperTest {
+
+    @Test
+    public void toMessage_readsEveryField() {
+        Message message = SnapshotMapper.toMessage("-Nmsg1", messageFields("1700000000000"));
+
+        assertNotNull(message);
+        assertEquals("-Nmsg1", message.getMessageId());
+        assertEquals("user_a", message.getSenderId());
+        assertEquals("Hello", message.getMessageContent());
+        assertEquals(MessageType.TEXT, message.getMessageType());
+        assertEquals(1_700_000_000_000L, message.getTimestamp());
+    }
+
+    @Test
+    public void toMessage_acceptsNumericTimestamp() {
+        Message message = SnapshotMapper.toMessage("-Nmsg1", messageFields(1_700_000_000_000L));
+
+        assertNotNull(message);
+        assertEquals(1_700_000_000_000L, message.getTimestamp());
+    }
+
+    @Test
+    public void toMessage_rejectsMissingField() {
+        Map<String, Object> fields = messageFields("1700000000000");
+        fields.remove("sender_id");
+
+        assertNull(SnapshotMapper.toMessage("-Nmsg1", fields));
+        assertNull(SnapshotMapper.toMessage("-Nmsg1", null));
+    }
+
+    private static Map<String, Object> messageFields(Object timestamp) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("sender_id", "user_a");
+        fields.put("message_content", "Hello");
+        fields.put("message_type", "text");
+        fields.put("timestamp", timestamp);
+        return fields;
+    }
+}